@@ -1,10 +1,72 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.net.URLDecoder;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
 import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
 
 class HospitalSystemException extends Exception {
     public HospitalSystemException(String message) {
@@ -24,204 +86,5106 @@ class AppointmentNotFoundException extends HospitalSystemException {
     }
 }
 
+class AppointmentConflictException extends HospitalSystemException {
+    public AppointmentConflictException(String doctorName, String date, String time) {
+        super("Doctor '" + doctorName + "' already has an appointment overlapping " + date + " " + time + ".");
+    }
+}
+
+class ShardUnavailableException extends HospitalSystemException {
+    public ShardUnavailableException(String address, String reason) {
+        super("Shard " + address + " is unavailable: " + reason);
+    }
+}
+
+class ReadOnlyReplicaException extends HospitalSystemException {
+    public ReadOnlyReplicaException() {
+        super("This node is a read-only replica. Make changes on the primary.");
+    }
+}
+
+class DuplicatePatientException extends HospitalSystemException {
+    private final List<Patient> likelyMatches;
+
+    public DuplicatePatientException(String name, List<Patient> likelyMatches) {
+        super("Patient '" + name + "' looks like " + likelyMatches.size() + " existing patient(s).");
+        this.likelyMatches = likelyMatches;
+    }
+
+    public List<Patient> getLikelyMatches() {
+        return likelyMatches;
+    }
+}
+
 class Patient {
     String id;
     String name;
     int age;
     String gender;
     String contactNumber;
+    String contactDigits;
+    int slot;
+
+    static final int MAX_FIELD_BYTES = 0xFFFF;
+
+    public Patient(String id, String name, int age, String gender, String contactNumber) {
+        if (validationError(name, age, gender, contactNumber) != null) {
+            throw new IllegalArgumentException("Invalid patient data provided.");
+        }
+        this.id = id;
+        this.name = name;
+        this.age = age;
+        this.gender = gender;
+        this.contactNumber = contactNumber;
+        this.contactDigits = normalizeContactNumber(contactNumber);
+    }
+
+    static String validationError(String name, int age, String gender, String contactNumber) {
+        if (name == null || name.trim().isEmpty()) {
+            return "name is empty";
+        }
+        if (age <= 0) {
+            return "age must be positive";
+        }
+        if (gender == null || gender.trim().isEmpty()) {
+            return "gender is empty";
+        }
+        if (contactNumber == null || contactNumber.trim().isEmpty()) {
+            return "contact number is empty";
+        }
+        if (!fitsRecordField(name) || !fitsRecordField(gender) || !fitsRecordField(contactNumber)) {
+            return "name, gender and contact must each be at most " + MAX_FIELD_BYTES + " bytes";
+        }
+        return null;
+    }
+
+    static boolean fitsRecordField(String value) {
+        if (value.length() <= MAX_FIELD_BYTES / 3) {
+            return true;
+        }
+        int bytes = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            bytes += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+        }
+        return bytes <= MAX_FIELD_BYTES;
+    }
+
+    static String normalizeContactNumber(String contactNumber) {
+        StringBuilder digits = new StringBuilder(contactNumber.length());
+        for (int i = 0; i < contactNumber.length(); i++) {
+            char c = contactNumber.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits.append(c);
+            }
+        }
+        return digits.toString();
+    }
+
+    public String getId() { return id; }
+    public String getName() { return name; }
+    public int getAge() { return age; }
+    public String getGender() { return gender; }
+    public String getContactNumber() { return contactNumber; }
+    public String getContactDigits() { return contactDigits; }
+
+    @Override
+    public String toString() {
+        return String.format("Patient [ID=%-5s | Name=%-20s | Age=%-3d | Gender=%-10s | Contact=%-15s]",
+                             id, name, age, gender, contactNumber);
+    }
+
+    public String toFormattedString() {
+        return String.format("| %-5s | %-20s | %-5d | %-10s | %-15s |",
+                             id, name, age, gender, contactNumber);
+    }
+}
+
+class Appointment {
+    static final int MINUTES_PER_DAY = 24 * 60;
+
+    String appointmentId;
+    String patientId;
+    String patientName;
+    String doctorName;
+    long startMinute;
+    String reason;
+
+    static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ISO_LOCAL_DATE;
+    static final DateTimeFormatter TIME_FORMATTER = DateTimeFormatter.ofPattern("HH:mm");
+
+    public Appointment(String appointmentId, String patientId, String patientName, String doctorName, String date, String time, String reason) throws HospitalSystemException {
+        this(appointmentId, patientId, patientName, doctorName, parseStartMinute(date, time), reason);
+    }
+
+    public Appointment(String appointmentId, String patientId, String patientName, String doctorName, long startMinute, String reason) throws HospitalSystemException {
+        requireDetails(patientId, patientName, doctorName, reason);
+        if (IdGenerator.parse(appointmentId, 'A') < 0) {
+            throw new HospitalSystemException("Invalid appointment ID '" + appointmentId + "'.");
+        }
+
+        this.appointmentId = appointmentId;
+        this.patientId = patientId;
+        this.patientName = patientName;
+        this.doctorName = doctorName;
+        this.startMinute = startMinute;
+        this.reason = reason;
+    }
+
+    static void requireDetails(String patientId, String patientName, String doctorName, String reason) throws HospitalSystemException {
+        if (patientId == null || patientId.trim().isEmpty() ||
+            patientName == null || patientName.trim().isEmpty() ||
+            doctorName == null || doctorName.trim().isEmpty() ||
+            reason == null || reason.trim().isEmpty()) {
+            throw new HospitalSystemException("Missing required appointment details.");
+        }
+        requireFieldsFit(patientName, doctorName, reason);
+    }
+
+    static void requireFieldsFit(String... fields) throws HospitalSystemException {
+        for (String field : fields) {
+            if (!Patient.fitsRecordField(field)) {
+                throw new HospitalSystemException("Appointment details must each be at most " + Patient.MAX_FIELD_BYTES + " bytes.");
+            }
+        }
+    }
+
+    static long parseStartMinute(String date, String time) throws HospitalSystemException {
+        if (date == null || time == null) {
+            throw new HospitalSystemException("Date and time are required.");
+        }
+        try {
+            return toStartMinute(LocalDate.parse(date, DATE_FORMATTER), LocalTime.parse(time, TIME_FORMATTER));
+        } catch (DateTimeParseException e) {
+            throw new HospitalSystemException("Invalid date or time format. Use YYYY-MM-DD and HH:MM. " + e.getMessage());
+        }
+    }
+
+    static long toStartMinute(LocalDate date, LocalTime time) {
+        return date.toEpochDay() * MINUTES_PER_DAY + time.getHour() * 60 + time.getMinute();
+    }
+
+    static LocalDateTime toDateTime(long startMinute) {
+        return LocalDateTime.of(LocalDate.ofEpochDay(Math.floorDiv(startMinute, MINUTES_PER_DAY)),
+                                LocalTime.ofSecondOfDay(Math.floorMod(startMinute, MINUTES_PER_DAY) * 60L));
+    }
+
+    public String getAppointmentId() { return appointmentId; }
+    public String getPatientId() { return patientId; }
+    public String getPatientName() { return patientName; }
+    public String getDoctorName() { return doctorName; }
+    public long getStartMinute() { return startMinute; }
+    public LocalDateTime getStart() { return toDateTime(startMinute); }
+    public String getDate() { return LocalDate.ofEpochDay(Math.floorDiv(startMinute, MINUTES_PER_DAY)).format(DATE_FORMATTER); }
+    public String getTime() { return LocalTime.ofSecondOfDay(Math.floorMod(startMinute, MINUTES_PER_DAY) * 60L).format(TIME_FORMATTER); }
+    public String getReason() { return reason; }
+
+    @Override
+    public String toString() {
+        return String.format("Appointment [ID=%-5s | PatientID=%-5s | Name=%-15s | Doctor=%-15s | Date=%-10s | Time=%-5s | Reason=%-20s]",
+               appointmentId, patientId, patientName, doctorName, getDate(), getTime(), reason);
+    }
+
+    public String toFormattedString() {
+        return String.format("| %-7s | %-10s | %-20s | %-15s | %-10s | %-8s | %-25s |",
+                             appointmentId, patientId, patientName, doctorName, getDate(), getTime(), reason);
+    }
+}
+
+class FreeSlot {
+    private final String doctorName;
+    private final LocalDateTime start;
+
+    public FreeSlot(String doctorName, LocalDateTime start) {
+        this.doctorName = doctorName;
+        this.start = start;
+    }
+
+    public String getDoctorName() { return doctorName; }
+    public LocalDateTime getStart() { return start; }
+    public String getDate() { return start.toLocalDate().toString(); }
+    public String getTime() { return start.toLocalTime().toString(); }
+
+    @Override
+    public String toString() {
+        return String.format("FreeSlot [Doctor=%-15s | Date=%-10s | Time=%-5s]", doctorName, getDate(), getTime());
+    }
+}
+
+class Page<T> {
+    static final char PATIENT_CURSOR = 'p';
+    static final char APPOINTMENT_CURSOR = 'a';
+    static final int MAX_PAGE_SIZE = 1000;
+
+    private final List<T> items;
+    private final String nextCursor;
+
+    public Page(List<T> items, String nextCursor) {
+        this.items = Collections.unmodifiableList(items);
+        this.nextCursor = nextCursor;
+    }
+
+    public List<T> getItems() { return items; }
+    public String getNextCursor() { return nextCursor; }
+    public boolean hasNext() { return nextCursor != null; }
+
+    static String encodeCursor(char kind, long position) {
+        return kind + Long.toString(position, 36);
+    }
+
+    static long decodeCursor(String cursor, char kind) throws HospitalSystemException {
+        if (cursor == null || cursor.isEmpty()) {
+            return 0;
+        }
+        try {
+            if (cursor.charAt(0) == kind) {
+                long position = Long.parseLong(cursor.substring(1), 36);
+                if (position >= 0) {
+                    return position;
+                }
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        throw new HospitalSystemException("Invalid page cursor '" + cursor + "'.");
+    }
+
+    static void requirePageSize(int pageSize) throws HospitalSystemException {
+        if (pageSize <= 0 || pageSize > MAX_PAGE_SIZE) {
+            throw new HospitalSystemException("Page size must be between 1 and " + MAX_PAGE_SIZE + ".");
+        }
+    }
+}
+
+class AuthService {
+    private final Map<String, String> users = new HashMap<>();
+    private final Map<String, String> roles = new HashMap<>();
+
+    public AuthService() {
+        initializeUsers();
+    }
+
+    private void initializeUsers() {
+        users.put("admin", "admin123");
+        roles.put("admin", "Admin");
+        users.put("reception", "pass123");
+        roles.put("reception", "Receptionist");
+    }
+
+    public String login(String username, String password) {
+        if (users.containsKey(username) && users.get(username).equals(password)) {
+            return roles.get(username);
+        }
+        return null;
+    }
+
+    public Map<String, String> getAllUserRoles() {
+        return Collections.unmodifiableMap(roles);
+    }
+}
+
+class NameUtil {
+    static String normalize(String name) {
+        StringBuilder normalized = new StringBuilder(name.length());
+        boolean pendingSpace = false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isWhitespace(c)) {
+                pendingSpace = normalized.length() > 0;
+            } else {
+                if (pendingSpace) {
+                    normalized.append(' ');
+                    pendingSpace = false;
+                }
+                normalized.append(Character.toLowerCase(c));
+            }
+        }
+        return normalized.toString();
+    }
+}
+
+class PatientNameIndex {
+    private static final char NUMBER_SEPARATOR = '\u0000';
+
+    private final ConcurrentNavigableMap<String, Boolean> entries = new ConcurrentSkipListMap<>();
+
+    public void add(int number, String patientName) {
+        String name = NameUtil.normalize(patientName);
+        for (int start = 0; start < name.length(); start = name.indexOf(' ', start) + 1) {
+            entries.put(name.substring(start) + NUMBER_SEPARATOR + number, Boolean.TRUE);
+            if (name.indexOf(' ', start) < 0) {
+                break;
+            }
+        }
+    }
+
+    public List<Patient> findByPrefix(String prefix, int limit, Function<Integer, Patient> resolver) {
+        String key = NameUtil.normalize(prefix);
+        Set<Integer> numbers = new LinkedHashSet<>();
+        if (key.isEmpty()) {
+            return new ArrayList<>();
+        }
+        for (String entry : entries.tailMap(key, true).keySet()) {
+            if (!entry.startsWith(key) || numbers.size() == limit) {
+                break;
+            }
+            numbers.add(Integer.parseInt(entry.substring(entry.lastIndexOf(NUMBER_SEPARATOR) + 1)));
+        }
+        List<Patient> matches = new ArrayList<>(numbers.size());
+        for (int number : numbers) {
+            Patient patient = resolver.apply(number);
+            if (patient != null) {
+                matches.add(patient);
+            }
+        }
+        return matches;
+    }
+}
+
+class FuzzyNameIndex {
+    private static final int POSTING_SCAN_BUDGET = 8_192;
+    private static final int MAX_CANDIDATES = 200;
+    private static final int PHONETIC_MATCH = 1 << 16;
+    private static final int HISTOGRAM_BUCKETS = 128;
+
+    static class Postings {
+        volatile int[] numbers = new int[4];
+        volatile int size;
+
+        synchronized void add(int number) {
+            if (size == numbers.length) {
+                numbers = Arrays.copyOf(numbers, size * 2);
+            }
+            numbers[size] = number;
+            size = size + 1;
+        }
+    }
+
+    private final ConcurrentMap<String, Postings> byPhoneticKey = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Postings> byTrigram = new ConcurrentHashMap<>();
+
+    public void add(int number, String name) {
+        String normalized = NameUtil.normalize(name);
+        String phoneticKey = phoneticKey(normalized);
+        if (!phoneticKey.isEmpty()) {
+            byPhoneticKey.computeIfAbsent(phoneticKey, k -> new Postings()).add(number);
+        }
+        for (String trigram : trigrams(normalized)) {
+            byTrigram.computeIfAbsent(trigram, k -> new Postings()).add(number);
+        }
+    }
+
+    public List<Patient> search(String name, int limit, Function<Integer, Patient> resolver) {
+        String query = NameUtil.normalize(name);
+        List<Postings> lists = new ArrayList<>();
+        for (String trigram : trigrams(query)) {
+            Postings postings = byTrigram.get(trigram);
+            if (postings != null) {
+                lists.add(postings);
+            }
+        }
+        lists.sort(Comparator.comparingInt(postings -> postings.size));
+
+        Postings phonetic = byPhoneticKey.get(phoneticKey(query));
+        List<Postings> scanned = new ArrayList<>();
+        int[] scanSizes = new int[lists.size()];
+        int budget = POSTING_SCAN_BUDGET;
+        int phoneticSize = phonetic == null ? 0 : Math.min(phonetic.size, budget);
+        int expected = phoneticSize;
+        budget -= phoneticSize;
+        for (Postings postings : lists) {
+            int size = postings.size;
+            if (size > budget) {
+                break;
+            }
+            scanSizes[scanned.size()] = size;
+            scanned.add(postings);
+            budget -= size;
+            expected += size;
+        }
+
+        CandidateCounter counter = new CandidateCounter(expected);
+        if (phonetic != null) {
+            counter.addAll(phonetic, PHONETIC_MATCH, phoneticSize);
+        }
+        for (int i = 0; i < scanned.size(); i++) {
+            counter.addAll(scanned.get(i), 1, scanSizes[i]);
+        }
+
+        int maxDistance = Math.max(1, (query.length() + 2) / 3);
+        List<Patient> matches = new ArrayList<>();
+        Map<Patient, Integer> distances = new HashMap<>();
+        for (int number : counter.top(MAX_CANDIDATES)) {
+            Patient patient = resolver.apply(number);
+            if (patient == null) {
+                continue;
+            }
+            int distance = editDistance(query, NameUtil.normalize(patient.getName()), maxDistance);
+            if (distance <= maxDistance) {
+                distances.put(patient, distance);
+                matches.add(patient);
+            }
+        }
+        matches.sort(Comparator.comparingInt((Patient p) -> distances.get(p))
+                               .thenComparingLong(p -> IdGenerator.parse(p.getId(), 'P')));
+        return matches.size() > limit ? new ArrayList<>(matches.subList(0, limit)) : matches;
+    }
+
+    static class CandidateCounter {
+        private final int[] numbers;
+        private final int[] scores;
+        private int size;
+
+        CandidateCounter(int expected) {
+            int capacity = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+            numbers = new int[capacity];
+            scores = new int[capacity];
+        }
+
+        void addAll(Postings postings, int score, int limit) {
+            int count = Math.min(postings.size, limit);
+            int[] snapshot = postings.numbers;
+            for (int i = 0; i < count; i++) {
+                add(snapshot[i], score);
+            }
+        }
+
+        private void add(int number, int score) {
+            int mask = numbers.length - 1;
+            int slot = (number * 0x9E3779B9) & mask;
+            while (scores[slot] != 0 && numbers[slot] != number) {
+                slot = (slot + 1) & mask;
+            }
+            if (scores[slot] == 0) {
+                numbers[slot] = number;
+                size++;
+            }
+            scores[slot] += score;
+        }
+
+        int[] top(int limit) {
+            int[] histogram = new int[HISTOGRAM_BUCKETS];
+            for (int score : scores) {
+                if (score != 0) {
+                    histogram[bucket(score)]++;
+                }
+            }
+            int threshold = HISTOGRAM_BUCKETS - 1;
+            int selected = histogram[threshold];
+            while (threshold > 1 && selected < limit) {
+                selected += histogram[--threshold];
+            }
+            int[] result = new int[Math.min(limit, size)];
+            int n = 0;
+            for (int slot = 0; slot < numbers.length && n < result.length; slot++) {
+                if (scores[slot] != 0 && bucket(scores[slot]) > threshold) {
+                    result[n++] = numbers[slot];
+                }
+            }
+            for (int slot = 0; slot < numbers.length && n < result.length; slot++) {
+                if (scores[slot] != 0 && bucket(scores[slot]) == threshold) {
+                    result[n++] = numbers[slot];
+                }
+            }
+            return Arrays.copyOf(result, n);
+        }
+
+        private static int bucket(int score) {
+            int trigrams = Math.min(score & (PHONETIC_MATCH - 1), HISTOGRAM_BUCKETS / 2 - 1);
+            return score >= PHONETIC_MATCH ? HISTOGRAM_BUCKETS / 2 + trigrams : trigrams;
+        }
+    }
+
+    static String phoneticKey(String normalizedName) {
+        StringBuilder key = new StringBuilder();
+        for (String word : normalizedName.split(" ")) {
+            String code = soundex(word);
+            if (!code.isEmpty()) {
+                if (key.length() > 0) {
+                    key.append(' ');
+                }
+                key.append(code);
+            }
+        }
+        return key.toString();
+    }
+
+    static String soundex(String word) {
+        char[] code = {'0', '0', '0', '0'};
+        int length = 0;
+        char previous = 0;
+        for (int i = 0; i < word.length() && length < code.length; i++) {
+            char c = Character.toUpperCase(word.charAt(i));
+            if (c < 'A' || c > 'Z') {
+                continue;
+            }
+            char digit = soundexDigit(c);
+            if (length == 0) {
+                code[length++] = c;
+            } else if (digit != '0' && digit != previous) {
+                code[length++] = digit;
+            }
+            if (c != 'H' && c != 'W') {
+                previous = digit;
+            }
+        }
+        return length == 0 ? "" : new String(code);
+    }
+
+    private static char soundexDigit(char c) {
+        switch (c) {
+            case 'B': case 'F': case 'P': case 'V':
+                return '1';
+            case 'C': case 'G': case 'J': case 'K': case 'Q': case 'S': case 'X': case 'Z':
+                return '2';
+            case 'D': case 'T':
+                return '3';
+            case 'L':
+                return '4';
+            case 'M': case 'N':
+                return '5';
+            case 'R':
+                return '6';
+            default:
+                return '0';
+        }
+    }
+
+    static Set<String> trigrams(String normalizedName) {
+        Set<String> trigrams = new HashSet<>();
+        String padded = "$" + normalizedName + "$";
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            trigrams.add(padded.substring(i, i + 3));
+        }
+        return trigrams;
+    }
+
+    static int editDistance(String a, String b, int maxDistance) {
+        if (Math.abs(a.length() - b.length()) > maxDistance) {
+            return maxDistance + 1;
+        }
+        int[] beforePrevious = new int[b.length() + 1];
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            int rowMinimum = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(previous[j - 1] + cost, Math.min(previous[j], current[j - 1]) + 1);
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    current[j] = Math.min(current[j], beforePrevious[j - 2] + 1);
+                }
+                rowMinimum = Math.min(rowMinimum, current[j]);
+            }
+            if (rowMinimum > maxDistance) {
+                return maxDistance + 1;
+            }
+            int[] recycled = beforePrevious;
+            beforePrevious = previous;
+            previous = current;
+            current = recycled;
+        }
+        return previous[b.length()];
+    }
+}
+
+class ContactNumberIndex {
+    private final ConcurrentMap<String, FuzzyNameIndex.Postings> byDigits = new ConcurrentHashMap<>();
+
+    public void add(int number, String contactDigits) {
+        if (!contactDigits.isEmpty()) {
+            byDigits.computeIfAbsent(contactDigits, k -> new FuzzyNameIndex.Postings()).add(number);
+        }
+    }
+
+    public FuzzyNameIndex.Postings postings(String contactDigits) {
+        return byDigits.get(contactDigits);
+    }
+
+    public List<Patient> find(String contactDigits, Function<Integer, Patient> resolver) {
+        FuzzyNameIndex.Postings postings = byDigits.get(contactDigits);
+        if (postings == null) {
+            return Collections.emptyList();
+        }
+        int size = postings.size;
+        int[] numbers = postings.numbers;
+        List<Patient> patients = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            Patient patient = resolver.apply(numbers[i]);
+            if (patient != null) {
+                patients.add(patient);
+            }
+        }
+        return Collections.unmodifiableList(patients);
+    }
+}
+
+class DuplicatePatientIndex {
+    private static final int AGE_BAND_YEARS = 5;
+    private static final int AGE_TOLERANCE_YEARS = 2;
+    private static final int MAX_BLOCK_SCAN = 256;
+
+    private final ConcurrentMap<String, FuzzyNameIndex.Postings> blocks = new ConcurrentHashMap<>();
+    private final ContactNumberIndex contactIndex;
+
+    public DuplicatePatientIndex(ContactNumberIndex contactIndex) {
+        this.contactIndex = contactIndex;
+    }
+
+    public void add(int number, Patient patient) {
+        String name = NameUtil.normalize(patient.getName());
+        blocks.computeIfAbsent(phoneticKey(name, patient.getAge() / AGE_BAND_YEARS), k -> new FuzzyNameIndex.Postings())
+              .add(number);
+    }
+
+    public List<Patient> findLikelyDuplicates(String name, int age, String contactNumber,
+                                              Function<Integer, Patient> resolver) {
+        String normalized = NameUtil.normalize(name);
+        String contact = Patient.normalizeContactNumber(contactNumber);
+        int maxDistance = Math.max(1, (normalized.length() + 2) / 3);
+        Set<Integer> seen = new HashSet<>();
+        Map<Patient, Integer> distances = new LinkedHashMap<>();
+        FuzzyNameIndex.Postings sameContact = contact.isEmpty() ? null : contactIndex.postings(contact);
+        if (sameContact != null) {
+            int size = sameContact.size;
+            int[] numbers = sameContact.numbers;
+            for (int i = size - 1; i >= Math.max(0, size - MAX_BLOCK_SCAN); i--) {
+                Patient candidate = seen.add(numbers[i]) ? resolver.apply(numbers[i]) : null;
+                if (candidate == null) {
+                    continue;
+                }
+                int distance = FuzzyNameIndex.editDistance(normalized, NameUtil.normalize(candidate.getName()), maxDistance);
+                if (distance <= maxDistance) {
+                    distances.put(candidate, distance);
+                }
+            }
+        }
+        List<String> keys = new ArrayList<>();
+        for (int band = (age - AGE_TOLERANCE_YEARS) / AGE_BAND_YEARS; band <= (age + AGE_TOLERANCE_YEARS) / AGE_BAND_YEARS; band++) {
+            keys.add(phoneticKey(normalized, band));
+        }
+        for (String key : keys) {
+            FuzzyNameIndex.Postings block = blocks.get(key);
+            if (block == null) {
+                continue;
+            }
+            int size = block.size;
+            int[] numbers = block.numbers;
+            for (int i = size - 1; i >= Math.max(0, size - MAX_BLOCK_SCAN); i--) {
+                Patient candidate = seen.add(numbers[i]) ? resolver.apply(numbers[i]) : null;
+                if (candidate == null) {
+                    continue;
+                }
+                if (Math.abs(candidate.getAge() - age) > AGE_TOLERANCE_YEARS) {
+                    continue;
+                }
+                int distance = FuzzyNameIndex.editDistance(normalized, NameUtil.normalize(candidate.getName()), maxDistance);
+                if (distance <= maxDistance) {
+                    distances.put(candidate, distance);
+                }
+            }
+        }
+        List<Patient> matches = new ArrayList<>(distances.keySet());
+        matches.sort(Comparator.comparingInt(distances::get));
+        return matches;
+    }
+
+    private static String phoneticKey(String normalizedName, int ageBand) {
+        return FuzzyNameIndex.phoneticKey(normalizedName) + "|" + ageBand;
+    }
+}
+
+interface IdGenerator extends Closeable {
+    int NODE_BITS = 10;
+    int MAX_NODE = (1 << NODE_BITS) - 1;
+
+    long nextId();
+
+    void observe(long id);
+
+    long lastIssuedId();
+
+    int nodeOf(long id);
+
+    @Override
+    default void close() throws IOException {
+    }
+
+    static IdGenerator create(String scheme, int node) {
+        if ("lease".equalsIgnoreCase(scheme)) {
+            return new BlockLeasingIdGenerator(node);
+        }
+        if ("snowflake".equalsIgnoreCase(scheme)) {
+            return new SnowflakeIdGenerator(node);
+        }
+        throw new IllegalArgumentException("Unknown ID scheme '" + scheme + "'. Use lease or snowflake.");
+    }
+
+    static IdGenerator open(String scheme, int node, Path leaseFile) throws IOException {
+        if ("lease".equalsIgnoreCase(scheme)) {
+            return BlockLeasingIdGenerator.open(node, BlockLeasingIdGenerator.DEFAULT_BLOCK_SIZE, leaseFile);
+        }
+        return create(scheme, node);
+    }
+
+    static long parse(String id, char prefix) {
+        if (id == null || id.length() < 2 || id.length() > 20) {
+            return -1;
+        }
+        if (Character.toUpperCase(id.charAt(0)) != prefix || id.charAt(1) == '0') {
+            return -1;
+        }
+        long number = 0;
+        for (int i = 1; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (c < '0' || c > '9' || number > (Long.MAX_VALUE - (c - '0')) / 10) {
+                return -1;
+            }
+            number = number * 10 + (c - '0');
+        }
+        return number;
+    }
+
+    static void requireNode(int node) {
+        if (node < 0 || node > MAX_NODE) {
+            throw new IllegalArgumentException("Node ID must be between 0 and " + MAX_NODE + ".");
+        }
+    }
+}
+
+class BlockLeasingIdGenerator implements IdGenerator {
+    static final int DEFAULT_BLOCK_SIZE = 4096;
+    private static final int NODE_SHIFT = 63 - NODE_BITS;
+    private static final long LOCAL_MASK = (1L << NODE_SHIFT) - 1;
+
+    private final int node;
+    private final int blockSize;
+    private final FileChannel leaseChannel;
+    private final ByteBuffer leaseBuffer = ByteBuffer.allocate(8);
+    private long next = 1;
+    private long leaseEnd = 1;
+
+    BlockLeasingIdGenerator(int node) {
+        this(node, DEFAULT_BLOCK_SIZE, null);
+    }
+
+    private BlockLeasingIdGenerator(int node, int blockSize, FileChannel leaseChannel) {
+        IdGenerator.requireNode(node);
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Lease block size must be positive.");
+        }
+        this.node = node;
+        this.blockSize = blockSize;
+        this.leaseChannel = leaseChannel;
+    }
+
+    static BlockLeasingIdGenerator open(int node, int blockSize, Path leaseFile) throws IOException {
+        Path parent = leaseFile.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        IdGenerator.requireNode(node);
+        FileChannel channel = FileChannel.open(leaseFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        BlockLeasingIdGenerator generator = new BlockLeasingIdGenerator(node, blockSize, channel);
+        ByteBuffer lease = ByteBuffer.allocate(8);
+        if (channel.read(lease, 0) == 8) {
+            generator.next = Math.max(1, lease.getLong(0));
+            generator.leaseEnd = generator.next;
+        }
+        return generator;
+    }
+
+    @Override
+    public synchronized long nextId() {
+        if (next >= leaseEnd) {
+            if (next + blockSize > LOCAL_MASK) {
+                throw new IllegalStateException("Node " + node + " has run out of IDs.");
+            }
+            persist(next + blockSize);
+            leaseEnd = next + blockSize;
+        }
+        return (long) node << NODE_SHIFT | next++;
+    }
+
+    @Override
+    public synchronized void observe(long id) {
+        if (id > 0 && nodeOf(id) == node) {
+            next = Math.max(next, (id & LOCAL_MASK) + 1);
+        }
+    }
+
+    @Override
+    public synchronized long lastIssuedId() {
+        return (long) node << NODE_SHIFT | (next - 1);
+    }
+
+    @Override
+    public int nodeOf(long id) {
+        return (int) (id >>> NODE_SHIFT);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (leaseChannel == null || !leaseChannel.isOpen()) {
+            return;
+        }
+        try {
+            persist(next);
+            leaseEnd = next;
+        } finally {
+            leaseChannel.close();
+        }
+    }
+
+    private void persist(long leasedUpTo) {
+        if (leaseChannel == null) {
+            return;
+        }
+        try {
+            leaseBuffer.clear();
+            leaseBuffer.putLong(leasedUpTo).flip();
+            while (leaseBuffer.hasRemaining()) {
+                leaseChannel.write(leaseBuffer, leaseBuffer.position());
+            }
+            leaseChannel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not lease a new block of IDs: " + e.getMessage(), e);
+        }
+    }
+}
+
+class SnowflakeIdGenerator implements IdGenerator {
+    static final long EPOCH_MILLIS = 1_704_067_200_000L;
+    private static final int SEQUENCE_BITS = 12;
+    private static final int TIMESTAMP_SHIFT = SEQUENCE_BITS + NODE_BITS;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    private final int node;
+    private final LongSupplier clock;
+    private long lastTimestamp = -1;
+    private long sequence;
+
+    SnowflakeIdGenerator(int node) {
+        this(node, System::currentTimeMillis);
+    }
+
+    SnowflakeIdGenerator(int node, LongSupplier clock) {
+        IdGenerator.requireNode(node);
+        this.node = node;
+        this.clock = clock;
+    }
+
+    @Override
+    public synchronized long nextId() {
+        long now = Math.max(clock.getAsLong() - EPOCH_MILLIS, 1);
+        if (now > lastTimestamp) {
+            lastTimestamp = now;
+            sequence = 0;
+        } else if (++sequence > SEQUENCE_MASK) {
+            lastTimestamp++;
+            sequence = 0;
+        }
+        return compose(lastTimestamp, sequence);
+    }
+
+    @Override
+    public synchronized void observe(long id) {
+        if (id <= 0 || nodeOf(id) != node) {
+            return;
+        }
+        long timestamp = id >>> TIMESTAMP_SHIFT;
+        long idSequence = id & SEQUENCE_MASK;
+        if (timestamp > lastTimestamp || (timestamp == lastTimestamp && idSequence > sequence)) {
+            lastTimestamp = timestamp;
+            sequence = idSequence;
+        }
+    }
+
+    @Override
+    public synchronized long lastIssuedId() {
+        return lastTimestamp < 0 ? 0 : compose(lastTimestamp, sequence);
+    }
+
+    @Override
+    public int nodeOf(long id) {
+        return (int) (id >>> SEQUENCE_BITS) & MAX_NODE;
+    }
+
+    private long compose(long timestamp, long sequence) {
+        return timestamp << TIMESTAMP_SHIFT | (long) node << SEQUENCE_BITS | sequence;
+    }
+}
+
+interface PatientStore {
+    void put(int slot, long id, Patient patient);
+
+    Patient get(int slot);
+
+    Patient getById(long id);
+
+    int size();
+
+    Iterator<Patient> iterator(int afterSlot, int lastSlot);
+
+    static PatientStore create(String kind) {
+        if ("objects".equalsIgnoreCase(kind)) {
+            return new ObjectPatientStore();
+        }
+        if ("columnar".equalsIgnoreCase(kind)) {
+            return new ColumnarPatientStore();
+        }
+        throw new IllegalArgumentException("Unknown patient store '" + kind + "'. Use objects or columnar.");
+    }
+}
+
+class ObjectPatientStore implements PatientStore {
+    private final ConcurrentNavigableMap<Integer, Patient> patients = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<Long, Patient> patientsById = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    @Override
+    public void put(int slot, long id, Patient patient) {
+        patientsById.put(id, patient);
+        if (patients.put(slot, patient) == null) {
+            size.incrementAndGet();
+        }
+    }
+
+    @Override
+    public Patient get(int slot) {
+        return patients.get(slot);
+    }
+
+    @Override
+    public Patient getById(long id) {
+        return patientsById.get(id);
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public Iterator<Patient> iterator(int afterSlot, int lastSlot) {
+        if (afterSlot >= lastSlot) {
+            return Collections.emptyIterator();
+        }
+        return patients.subMap(afterSlot, false, lastSlot, true).values().iterator();
+    }
+}
+
+class ColumnarPatientStore implements PatientStore {
+    private static final int PAGE_SHIFT = 20;
+    private static final int PAGE_BYTES = 1 << PAGE_SHIFT;
+    private static final int MAX_PAGES = 1 << (31 - PAGE_SHIFT);
+    private static final int OVERFLOW = 255;
+
+    private final StampedLock lock = new StampedLock();
+    private byte[] ages = new byte[1024];
+    private byte[] genders = new byte[1024];
+    private int[] offsets = new int[1024];
+    private long[] ids = new long[1024];
+    private int[] slotTable = new int[2048];
+    private final List<byte[]> pages = new ArrayList<>();
+    private int pagePosition = PAGE_BYTES;
+    private final List<String> genderCodes = new ArrayList<>();
+    private final Map<String, Integer> genderLookup = new HashMap<>();
+    private final Map<Integer, Integer> overflowAges = new HashMap<>();
+    private final Map<Integer, String> overflowGenders = new HashMap<>();
+    private int size;
+    private int maxSlot;
+
+    @Override
+    public void put(int slot, long id, Patient patient) {
+        byte[] name = patient.getName().getBytes(StandardCharsets.UTF_8);
+        byte[] contact = patient.getContactNumber().getBytes(StandardCharsets.UTF_8);
+        long stamp = lock.writeLock();
+        try {
+            if (slot >= ages.length) {
+                int capacity = Math.max(slot + 1, ages.length * 2);
+                ages = Arrays.copyOf(ages, capacity);
+                genders = Arrays.copyOf(genders, capacity);
+                offsets = Arrays.copyOf(offsets, capacity);
+                ids = Arrays.copyOf(ids, capacity);
+            }
+            if (ages[slot] == 0) {
+                size++;
+                ids[slot] = id;
+                insertSlot(slot);
+            }
+            maxSlot = Math.max(maxSlot, slot);
+            offsets[slot] = append(name, contact);
+            if (patient.getAge() < OVERFLOW) {
+                ages[slot] = (byte) patient.getAge();
+                overflowAges.remove(slot);
+            } else {
+                ages[slot] = (byte) OVERFLOW;
+                overflowAges.put(slot, patient.getAge());
+            }
+            Integer code = genderLookup.get(patient.getGender());
+            if (code == null && genderCodes.size() < OVERFLOW - 1) {
+                genderCodes.add(patient.getGender());
+                code = genderCodes.size();
+                genderLookup.put(patient.getGender(), code);
+            }
+            if (code != null) {
+                genders[slot] = (byte) (int) code;
+                overflowGenders.remove(slot);
+            } else {
+                genders[slot] = (byte) OVERFLOW;
+                overflowGenders.put(slot, patient.getGender());
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private void insertSlot(int slot) {
+        if (size * 2 > slotTable.length) {
+            int[] old = slotTable;
+            slotTable = new int[old.length * 2];
+            for (int existing : old) {
+                if (existing != 0) {
+                    slotTable[probe(ids[existing])] = existing;
+                }
+            }
+        }
+        slotTable[probe(ids[slot])] = slot;
+    }
+
+    private int probe(long id) {
+        int mask = slotTable.length - 1;
+        int index = Long.hashCode(id * 0x9E3779B97F4A7C15L) & mask;
+        while (slotTable[index] != 0 && ids[slotTable[index]] != id) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private int append(byte[] name, byte[] contact) {
+        int recordBytes = varIntSize(name.length) + name.length + varIntSize(contact.length) + contact.length;
+        if (pagePosition + recordBytes > PAGE_BYTES) {
+            if (pages.size() == MAX_PAGES) {
+                throw new IllegalStateException("Columnar patient store is full.");
+            }
+            pages.add(new byte[Math.max(PAGE_BYTES, recordBytes)]);
+            pagePosition = 0;
+        }
+        byte[] page = pages.get(pages.size() - 1);
+        int offset = (pages.size() - 1) << PAGE_SHIFT | pagePosition;
+        pagePosition = putBytes(page, putBytes(page, pagePosition, name), contact);
+        if (recordBytes > PAGE_BYTES) {
+            pagePosition = PAGE_BYTES;
+        }
+        return offset;
+    }
+
+    @Override
+    public Patient get(int slot) {
+        long stamp = lock.readLock();
+        try {
+            return read(slot);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public Patient getById(long id) {
+        long stamp = lock.readLock();
+        try {
+            int slot = slotTable[probe(id)];
+            return slot == 0 ? null : read(slot);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private Patient read(int slot) {
+        if (slot <= 0 || slot >= ages.length || ages[slot] == 0) {
+            return null;
+        }
+        int offset = offsets[slot];
+        byte[] page = pages.get(offset >>> PAGE_SHIFT);
+        int position = offset & (PAGE_BYTES - 1);
+        int nameLength = getVarInt(page, position);
+        position += varIntSize(nameLength);
+        String name = new String(page, position, nameLength, StandardCharsets.UTF_8);
+        position += nameLength;
+        int contactLength = getVarInt(page, position);
+        position += varIntSize(contactLength);
+        String contact = new String(page, position, contactLength, StandardCharsets.UTF_8);
+        int age = ages[slot] & 0xFF;
+        int gender = genders[slot] & 0xFF;
+        Patient patient = new Patient("P" + ids[slot], name, age == OVERFLOW ? overflowAges.get(slot) : age,
+                                      gender == OVERFLOW ? overflowGenders.get(slot) : genderCodes.get(gender - 1), contact);
+        patient.slot = slot;
+        return patient;
+    }
+
+    @Override
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public Iterator<Patient> iterator(int afterSlot, int lastSlot) {
+        return new Iterator<Patient>() {
+            private int slot = afterSlot;
+            private Patient next = advance();
+
+            private Patient advance() {
+                long stamp = lock.readLock();
+                try {
+                    int end = Math.min(lastSlot, maxSlot);
+                    while (slot < end) {
+                        Patient patient = read(++slot);
+                        if (patient != null) {
+                            return patient;
+                        }
+                    }
+                    return null;
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Patient next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Patient current = next;
+                next = advance();
+                return current;
+            }
+        };
+    }
+
+    private static int putBytes(byte[] page, int position, byte[] value) {
+        int length = value.length;
+        while (length >= 0x80) {
+            page[position++] = (byte) (length | 0x80);
+            length >>>= 7;
+        }
+        page[position++] = (byte) length;
+        System.arraycopy(value, 0, page, position, value.length);
+        return position + value.length;
+    }
+
+    private static int getVarInt(byte[] page, int position) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = page[position++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static int varIntSize(int value) {
+        int bytes = 1;
+        while (value >= 0x80) {
+            value >>>= 7;
+            bytes++;
+        }
+        return bytes;
+    }
+}
+
+class PatientService {
+    private final PatientStore store;
+    private final PatientNameIndex nameIndex = new PatientNameIndex();
+    private final FuzzyNameIndex fuzzyNameIndex = new FuzzyNameIndex();
+    private final ContactNumberIndex contactIndex = new ContactNumberIndex();
+    private final DuplicatePatientIndex duplicateIndex = new DuplicatePatientIndex(contactIndex);
+    private final AtomicInteger lastSlot = new AtomicInteger(0);
+    private final IdGenerator patientIds;
+    private final MutationLog mutationLog;
+
+    public PatientService() {
+        this(null);
+        registerSamplePatients();
+    }
+
+    public PatientService(MutationLog mutationLog) {
+        this(mutationLog, new ObjectPatientStore());
+    }
+
+    public PatientService(MutationLog mutationLog, PatientStore store) {
+        this(mutationLog, store, new BlockLeasingIdGenerator(0));
+    }
+
+    public PatientService(MutationLog mutationLog, PatientStore store, IdGenerator patientIds) {
+        this.mutationLog = mutationLog;
+        this.store = store;
+        this.patientIds = patientIds;
+    }
+
+    void registerSamplePatients() {
+        try {
+            registerPatient("John Doe", 30, "Male", "555-1234");
+            registerPatient("Jane Smith", 25, "Female", "555-5678");
+        } catch (HospitalSystemException e) {
+            System.err.println("Error initializing sample patients: " + e.getMessage());
+        }
+    }
+
+    public Patient registerPatient(String name, int age, String gender, String contactNumber) throws HospitalSystemException {
+        return registerPatient(name, age, gender, contactNumber, false);
+    }
+
+    public Patient registerPatient(String name, int age, String gender, String contactNumber, boolean allowDuplicate)
+            throws HospitalSystemException {
+        if (name == null || name.trim().isEmpty() ||
+            gender == null || gender.trim().isEmpty() ||
+            contactNumber == null || contactNumber.trim().isEmpty() ||
+            age <= 0) {
+            throw new HospitalSystemException("Invalid input. Name, gender, contact cannot be empty, and age must be positive.");
+        }
+        String error = Patient.validationError(name, age, gender, contactNumber);
+        if (error != null) {
+            throw new HospitalSystemException("Invalid input: " + error + ".");
+        }
+        requireWritable();
+        if (!allowDuplicate) {
+            List<Patient> likelyMatches = findLikelyDuplicates(name, age, contactNumber);
+            if (!likelyMatches.isEmpty()) {
+                throw new DuplicatePatientException(name, likelyMatches);
+            }
+        }
+        return create(() -> {
+            long id = patientIds.nextId();
+            return new Patient("P" + id, name, age, gender, contactNumber);
+        });
+    }
+
+    public Patient registerPatientWithId(String patientId, String name, int age, String gender, String contactNumber)
+            throws HospitalSystemException {
+        long id = IdGenerator.parse(patientId, 'P');
+        if (id < 0) {
+            throw new HospitalSystemException("Invalid patient ID '" + patientId + "'.");
+        }
+        requireWritable();
+        return create(() -> {
+            if (store.getById(id) != null) {
+                throw new IllegalArgumentException("Patient ID 'P" + id + "' is already registered.");
+            }
+            patientIds.observe(id);
+            return new Patient("P" + id, name, age, gender, contactNumber);
+        });
+    }
+
+    private void requireWritable() throws ReadOnlyReplicaException {
+        if (mutationLog != null) {
+            mutationLog.requireWritable();
+        }
+    }
+
+    private Patient create(Supplier<Patient> creation) throws HospitalSystemException {
+        try {
+            if (mutationLog == null) {
+                synchronized (this) {
+                    Patient created = creation.get();
+                    index(created);
+                    return created;
+                }
+            }
+            Patient[] created = new Patient[1];
+            long sequence = mutationLog.append(() -> {
+                Patient patient = creation.get();
+                byte[] record = MutationLog.patientRegisteredRecord(patient);
+                index(patient);
+                created[0] = patient;
+                return record;
+            });
+            mutationLog.awaitDurable(sequence);
+            return created[0];
+        } catch (IllegalArgumentException | IllegalStateException | UncheckedIOException e) {
+            throw new HospitalSystemException("Failed to create patient: " + e.getMessage());
+        }
+    }
+
+    public int registerPatients(List<PatientImporter.Row> rows) throws HospitalSystemException {
+        if (rows.isEmpty()) {
+            return 0;
+        }
+        requireWritable();
+        try {
+            if (mutationLog == null) {
+                synchronized (this) {
+                    indexAll(createAll(rows));
+                }
+            } else {
+                long sequence = mutationLog.appendAll(() -> {
+                    List<Patient> created = createAll(rows);
+                    List<byte[]> records = new ArrayList<>(rows.size());
+                    for (Patient patient : created) {
+                        records.add(MutationLog.patientRegisteredRecord(patient));
+                    }
+                    indexAll(created);
+                    return records;
+                });
+                mutationLog.awaitDurable(sequence);
+            }
+        } catch (IllegalArgumentException | IllegalStateException | UncheckedIOException e) {
+            throw new HospitalSystemException("Failed to create patients: " + e.getMessage());
+        }
+        return rows.size();
+    }
+
+    private List<Patient> createAll(List<PatientImporter.Row> rows) {
+        List<Patient> created = new ArrayList<>(rows.size());
+        for (PatientImporter.Row row : rows) {
+            created.add(new Patient("P" + patientIds.nextId(), row.name, row.age, row.gender, row.contactNumber));
+        }
+        return created;
+    }
+
+    private void indexAll(List<Patient> created) {
+        int first = lastSlot.getAndAdd(created.size()) + 1;
+        for (int i = 0; i < created.size(); i++) {
+            Patient patient = created.get(i);
+            index(first + i, IdGenerator.parse(patient.getId(), 'P'), patient);
+        }
+    }
+
+    private void index(Patient patient) {
+        index(lastSlot.incrementAndGet(), IdGenerator.parse(patient.getId(), 'P'), patient);
+    }
+
+    private void index(int slot, long id, Patient patient) {
+        patient.slot = slot;
+        store.put(slot, id, patient);
+        nameIndex.add(slot, patient.getName());
+        fuzzyNameIndex.add(slot, patient.getName());
+        contactIndex.add(slot, patient.getContactDigits());
+        duplicateIndex.add(slot, patient);
+    }
+
+    void restorePatient(Patient patient) throws HospitalSystemException {
+        long id = IdGenerator.parse(patient.getId(), 'P');
+        if (id < 0) {
+            throw new HospitalSystemException("Invalid patient ID '" + patient.getId() + "'.");
+        }
+        patientIds.observe(id);
+        if (store.getById(id) == null) {
+            index(lastSlot.incrementAndGet(), id, patient);
+        }
+    }
+
+    long lastIssuedId() {
+        return patientIds.lastIssuedId();
+    }
+
+    void restoreLastIssuedId(long id) {
+        patientIds.observe(id);
+    }
+
+    int lastSlot() {
+        return lastSlot.get();
+    }
+
+    Collection<Patient> patientsUpTo(int slot) {
+        return new AbstractCollection<Patient>() {
+            @Override
+            public Iterator<Patient> iterator() {
+                return store.iterator(0, slot);
+            }
+
+            @Override
+            public int size() {
+                int count = 0;
+                for (Iterator<Patient> it = iterator(); it.hasNext(); it.next()) {
+                    count++;
+                }
+                return count;
+            }
+        };
+    }
+
+    public Optional<Patient> findPatientById(String patientId) {
+        return findPatientById(IdGenerator.parse(patientId, 'P'));
+    }
+
+    public Optional<Patient> findPatientById(long id) {
+        return id < 0 ? Optional.empty() : Optional.ofNullable(store.getById(id));
+    }
+
+    public List<Patient> findLikelyDuplicates(String name, int age, String contactNumber) {
+        return duplicateIndex.findLikelyDuplicates(name, age, contactNumber, store::get);
+    }
+
+    public List<Patient> findPatientsByContactNumber(String contactNumber) throws HospitalSystemException {
+        String digits = contactNumber == null ? "" : Patient.normalizeContactNumber(contactNumber);
+        if (digits.isEmpty()) {
+            throw new HospitalSystemException("A contact number must contain at least one digit.");
+        }
+        return contactIndex.find(digits, store::get);
+    }
+
+    public List<Patient> searchPatientsByName(String namePrefix, int limit) throws HospitalSystemException {
+        if (namePrefix == null || namePrefix.trim().isEmpty() || limit <= 0) {
+            throw new HospitalSystemException("A name to search for and a positive result limit are required.");
+        }
+        return nameIndex.findByPrefix(namePrefix, limit, store::get);
+    }
+
+    public List<Patient> fuzzySearchPatientsByName(String name, int limit) throws HospitalSystemException {
+        if (name == null || name.trim().isEmpty() || limit <= 0) {
+            throw new HospitalSystemException("A name to search for and a positive result limit are required.");
+        }
+        return fuzzyNameIndex.search(name, limit, store::get);
+    }
+
+    public Page<Patient> listPatients(String cursor, int pageSize) throws HospitalSystemException {
+        Page.requirePageSize(pageSize);
+        long after = Page.decodeCursor(cursor, Page.PATIENT_CURSOR);
+        List<Patient> items = new ArrayList<>(pageSize);
+        Iterator<Patient> remaining = store.iterator((int) Math.min(after, Integer.MAX_VALUE), Integer.MAX_VALUE);
+        while (remaining.hasNext() && items.size() < pageSize) {
+            items.add(remaining.next());
+        }
+        String next = null;
+        if (remaining.hasNext()) {
+            next = Page.encodeCursor(Page.PATIENT_CURSOR, items.get(items.size() - 1).slot);
+        }
+        return new Page<>(items, next);
+    }
+
+    public int getPatientCount() {
+        return store.size();
+    }
+
+    public List<Patient> getAllPatients() {
+        List<Patient> all = new ArrayList<>(store.size());
+        store.iterator(0, Integer.MAX_VALUE).forEachRemaining(all::add);
+        return Collections.unmodifiableList(all);
+    }
+}
+
+class AppointmentStore {
+    private static final int COMPACTION_MIN_TOMBSTONES = 1024;
+    private static final ExecutorService COMPACTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "appointment-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Map<String, Integer> slotById = new HashMap<>();
+    private Appointment[] slots = new Appointment[16];
+    private long[] sequences = new long[16];
+    private BitSet tombstones = new BitSet();
+    private long lastSequence;
+    private int slotCount;
+    private int tombstoneCount;
+    private boolean compactionScheduled;
+
+    static String key(String appointmentId) {
+        return appointmentId == null ? null : appointmentId.toUpperCase(Locale.ROOT);
+    }
+
+    public synchronized void add(Appointment appointment) {
+        if (slotCount == slots.length) {
+            slots = Arrays.copyOf(slots, slotCount * 2);
+            sequences = Arrays.copyOf(sequences, slotCount * 2);
+        }
+        slots[slotCount] = appointment;
+        sequences[slotCount] = ++lastSequence;
+        slotById.put(key(appointment.getAppointmentId()), slotCount++);
+    }
+
+    public synchronized Appointment get(String appointmentId) {
+        Integer slot = slotById.get(key(appointmentId));
+        return slot == null ? null : slots[slot];
+    }
+
+    public synchronized Appointment remove(String appointmentId) {
+        Integer slot = slotById.remove(key(appointmentId));
+        if (slot == null) {
+            return null;
+        }
+        tombstones.set(slot);
+        tombstoneCount++;
+        if (!compactionScheduled && tombstoneCount >= COMPACTION_MIN_TOMBSTONES && tombstoneCount * 2 >= slotCount) {
+            compactionScheduled = true;
+            COMPACTOR.execute(this::compact);
+        }
+        return slots[slot];
+    }
+
+    public synchronized int size() {
+        return slotCount - tombstoneCount;
+    }
+
+    public synchronized Page<Appointment> page(long afterSequence, int pageSize) {
+        int low = 0;
+        int high = slotCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sequences[middle] <= afterSequence) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        List<Appointment> items = new ArrayList<>(Math.min(pageSize, slotCount - low));
+        long last = afterSequence;
+        int slot = tombstones.nextClearBit(low);
+        while (slot < slotCount && items.size() < pageSize) {
+            items.add(slots[slot]);
+            last = sequences[slot];
+            slot = tombstones.nextClearBit(slot + 1);
+        }
+        return new Page<>(items, slot < slotCount ? Page.encodeCursor(Page.APPOINTMENT_CURSOR, last) : null);
+    }
+
+    public synchronized List<Appointment> toList() {
+        List<Appointment> live = new ArrayList<>(slotCount - tombstoneCount);
+        for (int i = tombstones.nextClearBit(0); i < slotCount; i = tombstones.nextClearBit(i + 1)) {
+            live.add(slots[i]);
+        }
+        return live;
+    }
+
+    public synchronized View view() {
+        return new View(slots, slotCount, (BitSet) tombstones.clone(), slotCount - tombstoneCount);
+    }
+
+    static class View implements Iterable<Appointment> {
+        private final Appointment[] slots;
+        private final int slotCount;
+        private final BitSet tombstones;
+        private final int size;
+
+        View(Appointment[] slots, int slotCount, BitSet tombstones, int size) {
+            this.slots = slots;
+            this.slotCount = slotCount;
+            this.tombstones = tombstones;
+            this.size = size;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Iterator<Appointment> iterator() {
+            return new Iterator<Appointment>() {
+                private int next = tombstones.nextClearBit(0);
+
+                @Override
+                public boolean hasNext() {
+                    return next < slotCount;
+                }
+
+                @Override
+                public Appointment next() {
+                    if (next >= slotCount) {
+                        throw new NoSuchElementException();
+                    }
+                    Appointment appointment = slots[next];
+                    next = tombstones.nextClearBit(next + 1);
+                    return appointment;
+                }
+            };
+        }
+    }
+
+    void compact() {
+        Appointment[] source;
+        long[] sourceSequences;
+        BitSet removed;
+        int count;
+        synchronized (this) {
+            compactionScheduled = false;
+            if (tombstoneCount == 0) {
+                return;
+            }
+            source = slots;
+            sourceSequences = sequences;
+            removed = (BitSet) tombstones.clone();
+            count = slotCount;
+        }
+        int live = count - removed.cardinality();
+        Appointment[] compacted = new Appointment[Math.max(16, Integer.highestOneBit(Math.max(1, live)) * 2)];
+        long[] compactedSequences = new long[compacted.length];
+        Map<String, Integer> compactedSlotById = new HashMap<>();
+        int next = 0;
+        for (int i = removed.nextClearBit(0); i < count; i = removed.nextClearBit(i + 1)) {
+            compacted[next] = source[i];
+            compactedSequences[next] = sourceSequences[i];
+            compactedSlotById.put(key(source[i].getAppointmentId()), next);
+            next++;
+        }
+        synchronized (this) {
+            BitSet compactedTombstones = new BitSet();
+            BitSet removedSince = (BitSet) tombstones.clone();
+            removedSince.andNot(removed);
+            for (int i = removedSince.nextSetBit(0); i >= 0 && i < count; i = removedSince.nextSetBit(i + 1)) {
+                int slot = i - removed.get(0, i).cardinality();
+                compactedTombstones.set(slot);
+                compactedSlotById.remove(key(compacted[slot].getAppointmentId()));
+            }
+            int required = next + slotCount - count;
+            if (required > compacted.length) {
+                compacted = Arrays.copyOf(compacted, Integer.highestOneBit(required) * 2);
+                compactedSequences = Arrays.copyOf(compactedSequences, compacted.length);
+            }
+            for (int i = count; i < slotCount; i++) {
+                compacted[next] = slots[i];
+                compactedSequences[next] = sequences[i];
+                if (tombstones.get(i)) {
+                    compactedTombstones.set(next);
+                } else {
+                    compactedSlotById.put(key(slots[i].getAppointmentId()), next);
+                }
+                next++;
+            }
+            slots = compacted;
+            sequences = compactedSequences;
+            slotById = compactedSlotById;
+            slotCount = next;
+            tombstones = compactedTombstones;
+            tombstoneCount = compactedTombstones.cardinality();
+        }
+    }
+}
+
+class DoctorScheduleIndex {
+    static final int SLOT_MINUTES = 5;
+    static final int SLOTS_PER_DAY = 24 * 60 / SLOT_MINUTES;
+    static final int CLINIC_OPENING_MINUTE = 9 * 60;
+    static final int CLINIC_CLOSING_MINUTE = 17 * 60;
+    static final int SEARCH_HORIZON_DAYS = 366;
+    private static final int WORDS_PER_DAY = (SLOTS_PER_DAY + 63) / 64;
+
+    private final Map<String, Map<Long, long[]>> slotsByDoctor = new HashMap<>();
+
+    static String doctorKey(String doctorName) {
+        return NameUtil.normalize(doctorName);
+    }
+
+    public synchronized boolean isFree(String doctorName, long startMinute, int durationMinutes) {
+        Map<Long, long[]> days = slotsByDoctor.get(doctorKey(doctorName));
+        if (days == null) {
+            return true;
+        }
+        long first = Math.floorDiv(startMinute, SLOT_MINUTES);
+        long end = ceilDiv(startMinute + durationMinutes, SLOT_MINUTES);
+        for (long slot = first; slot < end; slot++) {
+            long[] day = days.get(Math.floorDiv(slot, SLOTS_PER_DAY));
+            int slotOfDay = Math.floorMod(slot, SLOTS_PER_DAY);
+            if (day != null && (day[slotOfDay >>> 6] & (1L << slotOfDay)) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized boolean reserve(String doctorName, long startMinute, int durationMinutes) {
+        if (!isFree(doctorName, startMinute, durationMinutes)) {
+            return false;
+        }
+        Map<Long, long[]> days = slotsByDoctor.computeIfAbsent(doctorKey(doctorName), k -> new HashMap<>());
+        long end = ceilDiv(startMinute + durationMinutes, SLOT_MINUTES);
+        for (long slot = Math.floorDiv(startMinute, SLOT_MINUTES); slot < end; slot++) {
+            long[] day = days.computeIfAbsent(Math.floorDiv(slot, SLOTS_PER_DAY), k -> new long[WORDS_PER_DAY]);
+            int slotOfDay = Math.floorMod(slot, SLOTS_PER_DAY);
+            day[slotOfDay >>> 6] |= 1L << slotOfDay;
+        }
+        return true;
+    }
+
+    public synchronized void release(String doctorName, long startMinute, int durationMinutes) {
+        Map<Long, long[]> days = slotsByDoctor.get(doctorKey(doctorName));
+        if (days == null) {
+            return;
+        }
+        long end = ceilDiv(startMinute + durationMinutes, SLOT_MINUTES);
+        for (long slot = Math.floorDiv(startMinute, SLOT_MINUTES); slot < end; slot++) {
+            long dayNumber = Math.floorDiv(slot, SLOTS_PER_DAY);
+            long[] day = days.get(dayNumber);
+            if (day == null) {
+                continue;
+            }
+            int slotOfDay = Math.floorMod(slot, SLOTS_PER_DAY);
+            day[slotOfDay >>> 6] &= ~(1L << slotOfDay);
+            if (isEmpty(day)) {
+                days.remove(dayNumber);
+            }
+        }
+        if (days.isEmpty()) {
+            slotsByDoctor.remove(doctorKey(doctorName));
+        }
+    }
+
+    public synchronized List<Long> nextFreeStarts(String doctorName, long fromMinute, int durationMinutes, int limit) {
+        List<Long> starts = new ArrayList<>(Math.min(limit, 64));
+        Map<Long, long[]> days = slotsByDoctor.getOrDefault(doctorKey(doctorName), Collections.emptyMap());
+        int length = (int) ceilDiv(durationMinutes, SLOT_MINUTES);
+        int openSlot = (int) ceilDiv(CLINIC_OPENING_MINUTE, SLOT_MINUTES);
+        int lastStartSlot = Math.floorDiv(CLINIC_CLOSING_MINUTE, SLOT_MINUTES) - length;
+        long fromSlot = ceilDiv(fromMinute, SLOT_MINUTES);
+        long firstDay = Math.floorDiv(fromSlot, SLOTS_PER_DAY);
+        for (long dayNumber = firstDay; dayNumber < firstDay + SEARCH_HORIZON_DAYS && starts.size() < limit; dayNumber++) {
+            long[] day = days.get(dayNumber);
+            int slot = dayNumber == firstDay ? Math.max(openSlot, Math.floorMod(fromSlot, SLOTS_PER_DAY)) : openSlot;
+            while (slot <= lastStartSlot && starts.size() < limit) {
+                int busy = day == null ? -1 : nextSetBit(day, slot);
+                if (busy < 0 || busy >= slot + length) {
+                    starts.add((dayNumber * SLOTS_PER_DAY + slot) * SLOT_MINUTES);
+                    slot += length;
+                } else {
+                    slot = nextClearBit(day, busy + 1);
+                }
+            }
+        }
+        return starts;
+    }
+
+    private static int nextSetBit(long[] day, int from) {
+        int wordIndex = from >>> 6;
+        if (wordIndex >= day.length) {
+            return -1;
+        }
+        long word = day[wordIndex] & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                return (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+            }
+            if (++wordIndex == day.length) {
+                return -1;
+            }
+            word = day[wordIndex];
+        }
+    }
+
+    private static int nextClearBit(long[] day, int from) {
+        int wordIndex = from >>> 6;
+        if (wordIndex >= day.length) {
+            return from;
+        }
+        long word = ~day[wordIndex] & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                return (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+            }
+            if (++wordIndex == day.length) {
+                return wordIndex << 6;
+            }
+            word = ~day[wordIndex];
+        }
+    }
+
+    private static boolean isEmpty(long[] day) {
+        for (long word : day) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long ceilDiv(long value, long divisor) {
+        return -Math.floorDiv(-value, divisor);
+    }
+}
+
+class AppointmentService {
+    static final int APPOINTMENT_MINUTES = 15;
+
+    private final AppointmentStore appointments = new AppointmentStore();
+    private final DoctorScheduleIndex doctorSchedule = new DoctorScheduleIndex();
+    private final Map<String, Map<String, Appointment>> appointmentsByPatient = new HashMap<>();
+    private final NavigableMap<Long, Map<String, Appointment>> appointmentsByStart = new TreeMap<>();
+    private final PatientService patientService;
+    private final MutationLog mutationLog;
+    private final IdGenerator appointmentIds;
+
+    public AppointmentService(PatientService patientService) {
+        this(patientService, null);
+    }
+
+    public AppointmentService(PatientService patientService, MutationLog mutationLog) {
+        this(patientService, mutationLog, new BlockLeasingIdGenerator(0));
+    }
+
+    public AppointmentService(PatientService patientService, MutationLog mutationLog, IdGenerator appointmentIds) {
+        this.patientService = patientService;
+        this.mutationLog = mutationLog;
+        this.appointmentIds = appointmentIds;
+    }
+
+    public Appointment bookAppointment(String patientId, String doctorName, String date, String time, String reason) throws HospitalSystemException {
+        return bookAppointment(patientId, doctorName, Appointment.parseStartMinute(date, time), reason);
+    }
+
+    public Appointment bookAppointment(String patientId, String doctorName, LocalDate date, LocalTime time, String reason) throws HospitalSystemException {
+        return bookAppointment(patientId, doctorName, Appointment.toStartMinute(date, time), reason);
+    }
+
+    private Appointment bookAppointment(String patientId, String doctorName, long startMinute, String reason) throws HospitalSystemException {
+        requireWritable();
+        Patient patient = patientService.findPatientById(patientId)
+                                        .orElseThrow(() -> new PatientNotFoundException(patientId));
+        Appointment.requireDetails(patient.getId(), patient.getName(), doctorName, reason);
+        Appointment newAppointment;
+        long sequence;
+        synchronized (this) {
+            if (!doctorSchedule.reserve(doctorName, startMinute, APPOINTMENT_MINUTES)) {
+                LocalDateTime start = Appointment.toDateTime(startMinute);
+                throw new AppointmentConflictException(doctorName, start.format(Appointment.DATE_FORMATTER),
+                                                       start.format(Appointment.TIME_FORMATTER));
+            }
+            try {
+                newAppointment = new Appointment("A" + nextAppointmentId(), patient.getId(), patient.getName(), doctorName, startMinute, reason);
+                sequence = mutationLog == null ? 0 : mutationLog.append(MutationLog.appointmentBookedRecord(newAppointment));
+            } catch (HospitalSystemException e) {
+                doctorSchedule.release(doctorName, startMinute, APPOINTMENT_MINUTES);
+                throw e;
+            } catch (IllegalStateException | UncheckedIOException e) {
+                doctorSchedule.release(doctorName, startMinute, APPOINTMENT_MINUTES);
+                throw new HospitalSystemException("Failed to book appointment: " + e.getMessage());
+            }
+            index(newAppointment);
+        }
+        if (mutationLog != null) {
+            mutationLog.awaitDurable(sequence);
+        }
+        return newAppointment;
+    }
+
+    private void requireWritable() throws ReadOnlyReplicaException {
+        if (mutationLog != null) {
+            mutationLog.requireWritable();
+        }
+    }
+
+    private long nextAppointmentId() throws HospitalSystemException {
+        try {
+            return appointmentIds.nextId();
+        } catch (IllegalStateException | UncheckedIOException e) {
+            throw new HospitalSystemException("Failed to create appointment: " + e.getMessage());
+        }
+    }
+
+    synchronized PointInTimeView capturePointInTime() {
+        if (mutationLog == null) {
+            return new PointInTimeView(0, patientService.lastIssuedId(), appointmentIds.lastIssuedId(),
+                                       patientService.patientsUpTo(patientService.lastSlot()), appointments.view());
+        }
+        return mutationLog.capture(position -> new PointInTimeView(position, patientService.lastIssuedId(), appointmentIds.lastIssuedId(),
+                                                                   patientService.patientsUpTo(patientService.lastSlot()),
+                                                                   appointments.view()));
+    }
+
+    void awaitDurable(PointInTimeView view) throws HospitalSystemException {
+        if (mutationLog != null) {
+            mutationLog.awaitDurableThrough(view.logPosition);
+        }
+    }
+
+    synchronized void restoreAppointment(Appointment appointment) throws HospitalSystemException {
+        if (!doctorSchedule.reserve(appointment.getDoctorName(), appointment.getStartMinute(), APPOINTMENT_MINUTES)) {
+            throw new AppointmentConflictException(appointment.getDoctorName(), appointment.getDate(), appointment.getTime());
+        }
+        appointmentIds.observe(IdGenerator.parse(appointment.getAppointmentId(), 'A'));
+        index(appointment);
+    }
+
+    void restoreLastIssuedId(long id) {
+        appointmentIds.observe(id);
+    }
+
+    synchronized void restoreCancellation(String appointmentId) throws AppointmentNotFoundException {
+        unindex(appointmentId);
+    }
+
+    private void index(Appointment appointment) {
+        appointments.add(appointment);
+        appointmentsByPatient.computeIfAbsent(appointment.getPatientId(), k -> new LinkedHashMap<>())
+                             .put(appointment.getAppointmentId(), appointment);
+        appointmentsByStart.computeIfAbsent(appointment.getStartMinute(), k -> new LinkedHashMap<>())
+                           .put(appointment.getAppointmentId(), appointment);
+    }
+
+    public List<Appointment> getAppointmentsByPatientId(String patientId) throws PatientNotFoundException {
+        Patient patient = patientService.findPatientById(patientId)
+                                        .orElseThrow(() -> new PatientNotFoundException(patientId));
+        synchronized (this) {
+            Map<String, Appointment> patientAppointments = appointmentsByPatient.get(patient.getId());
+            return patientAppointments == null ? new ArrayList<>() : new ArrayList<>(patientAppointments.values());
+        }
+    }
+
+
+    public List<Appointment> getAppointmentsBetween(LocalDateTime fromInclusive, LocalDateTime toExclusive) throws HospitalSystemException {
+        if (fromInclusive == null || toExclusive == null) {
+            throw new HospitalSystemException("Both ends of the date range are required.");
+        }
+        return getAppointmentsBetween(Appointment.toStartMinute(fromInclusive.toLocalDate(), fromInclusive.toLocalTime()),
+                                      Appointment.toStartMinute(toExclusive.toLocalDate(), toExclusive.toLocalTime()));
+    }
+
+    public List<Appointment> getAppointmentsBetween(LocalDate firstDay, LocalDate lastDay) throws HospitalSystemException {
+        if (firstDay == null || lastDay == null) {
+            throw new HospitalSystemException("Both ends of the date range are required.");
+        }
+        return getAppointmentsBetween(firstDay.toEpochDay() * Appointment.MINUTES_PER_DAY,
+                                      (lastDay.toEpochDay() + 1) * Appointment.MINUTES_PER_DAY);
+    }
+
+    public List<Appointment> getAppointmentsOn(LocalDate date) throws HospitalSystemException {
+        return getAppointmentsBetween(date, date);
+    }
+
+    public List<Appointment> getTodaysAppointments() throws HospitalSystemException {
+        return getAppointmentsOn(LocalDate.now());
+    }
+
+    private synchronized List<Appointment> getAppointmentsBetween(long fromMinute, long toMinute) {
+        List<Appointment> inRange = new ArrayList<>();
+        if (fromMinute >= toMinute) {
+            return inRange;
+        }
+        for (Map<String, Appointment> sameStart : appointmentsByStart.subMap(fromMinute, true, toMinute, false).values()) {
+            inRange.addAll(sameStart.values());
+        }
+        return inRange;
+    }
+
+    public boolean isDoctorAvailable(String doctorName, String date, String time) throws HospitalSystemException {
+        return isDoctorAvailable(doctorName, Appointment.parseStartMinute(date, time));
+    }
+
+    public boolean isDoctorAvailable(String doctorName, LocalDate date, LocalTime time) throws HospitalSystemException {
+        return isDoctorAvailable(doctorName, Appointment.toStartMinute(date, time));
+    }
+
+    private boolean isDoctorAvailable(String doctorName, long startMinute) throws HospitalSystemException {
+        if (doctorName == null || doctorName.trim().isEmpty()) {
+            throw new HospitalSystemException("Doctor name cannot be empty.");
+        }
+        return doctorSchedule.isFree(doctorName, startMinute, APPOINTMENT_MINUTES);
+    }
+
+    public List<FreeSlot> findNextAvailableSlots(String doctorName, String date, String time, int limit) throws HospitalSystemException {
+        return findNextAvailableSlots(Collections.singletonList(doctorName), Appointment.parseStartMinute(date, time), limit);
+    }
+
+    public List<FreeSlot> findNextAvailableSlots(Collection<String> doctorNames, String date, String time, int limit) throws HospitalSystemException {
+        return findNextAvailableSlots(doctorNames, Appointment.parseStartMinute(date, time), limit);
+    }
+
+    public List<FreeSlot> findNextAvailableSlots(Collection<String> doctorNames, LocalDate date, LocalTime time, int limit) throws HospitalSystemException {
+        return findNextAvailableSlots(doctorNames, Appointment.toStartMinute(date, time), limit);
+    }
+
+    private List<FreeSlot> findNextAvailableSlots(Collection<String> doctorNames, long fromMinute, int limit) throws HospitalSystemException {
+        if (doctorNames == null || doctorNames.isEmpty() || limit <= 0) {
+            throw new HospitalSystemException("At least one doctor and a positive number of slots are required.");
+        }
+        List<FreeSlot> slots = new ArrayList<>();
+        for (String doctorName : doctorNames) {
+            if (doctorName == null || doctorName.trim().isEmpty()) {
+                throw new HospitalSystemException("Doctor name cannot be empty.");
+            }
+            for (long start : doctorSchedule.nextFreeStarts(doctorName, fromMinute, APPOINTMENT_MINUTES, limit)) {
+                slots.add(new FreeSlot(doctorName.trim(), Appointment.toDateTime(start)));
+            }
+        }
+        slots.sort(Comparator.comparing(FreeSlot::getStart).thenComparing(FreeSlot::getDoctorName));
+        return slots.size() > limit ? new ArrayList<>(slots.subList(0, limit)) : slots;
+    }
+
+    public Page<Appointment> listAppointments(String cursor, int pageSize) throws HospitalSystemException {
+        Page.requirePageSize(pageSize);
+        return appointments.page(Page.decodeCursor(cursor, Page.APPOINTMENT_CURSOR), pageSize);
+    }
+
+    public int getAppointmentCount() {
+        return appointments.size();
+    }
+
+    public List<Appointment> getAllAppointments() {
+        return Collections.unmodifiableList(appointments.toList());
+    }
+
+    public boolean cancelAppointment(String appointmentId) throws HospitalSystemException {
+        cancel(appointmentId);
+        return true;
+    }
+
+    Appointment cancel(String appointmentId) throws HospitalSystemException {
+        requireWritable();
+        Appointment cancelled;
+        long sequence;
+        synchronized (this) {
+            if (appointments.get(appointmentId) == null) {
+                throw new AppointmentNotFoundException(appointmentId);
+            }
+            try {
+                sequence = mutationLog == null ? 0 : mutationLog.append(MutationLog.appointmentCancelledRecord(appointmentId));
+            } catch (IllegalStateException | UncheckedIOException e) {
+                throw new HospitalSystemException("Failed to cancel appointment: " + e.getMessage());
+            }
+            cancelled = unindex(appointmentId);
+        }
+        if (mutationLog != null) {
+            mutationLog.awaitDurable(sequence);
+        }
+        return cancelled;
+    }
+
+    private Appointment unindex(String appointmentId) throws AppointmentNotFoundException {
+        Appointment appointmentToRemove = appointments.remove(appointmentId);
+        if (appointmentToRemove == null) {
+            throw new AppointmentNotFoundException(appointmentId);
+        }
+        doctorSchedule.release(appointmentToRemove.getDoctorName(), appointmentToRemove.getStartMinute(), APPOINTMENT_MINUTES);
+        Map<String, Appointment> patientAppointments = appointmentsByPatient.get(appointmentToRemove.getPatientId());
+        if (patientAppointments != null) {
+            patientAppointments.remove(appointmentToRemove.getAppointmentId());
+            if (patientAppointments.isEmpty()) {
+                appointmentsByPatient.remove(appointmentToRemove.getPatientId());
+            }
+        }
+        Map<String, Appointment> sameStart = appointmentsByStart.get(appointmentToRemove.getStartMinute());
+        if (sameStart != null) {
+            sameStart.remove(appointmentToRemove.getAppointmentId());
+            if (sameStart.isEmpty()) {
+                appointmentsByStart.remove(appointmentToRemove.getStartMinute());
+            }
+        }
+        return appointmentToRemove;
+    }
+}
+
+class MutationLog implements Closeable {
+    static final byte PATIENT_REGISTERED = 1;
+    static final byte APPOINTMENT_BOOKED = 2;
+    static final byte APPOINTMENT_CANCELLED = 3;
+    private static final int HEADER_BYTES = 8;
+    private static final int MAX_RECORD_BYTES = 1 << 20;
+
+    private final Path path;
+    private final FileChannel channel;
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer spare = ByteBuffer.allocate(64 * 1024);
+    private long position;
+    private long durablePosition;
+    private long appendedSequence;
+    private long durableSequence;
+    private boolean flushing;
+    private boolean readOnly;
+    private IOException failure;
+
+    private MutationLog(Path path, FileChannel channel) {
+        this.path = path;
+        this.channel = channel;
+    }
+
+    public static MutationLog open(Path path) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        return new MutationLog(path, FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+    }
+
+    public synchronized int replay(long fromPosition, PatientService patientService, AppointmentService appointmentService) throws IOException {
+        if (appendedSequence != 0) {
+            throw new IllegalStateException("Replay must happen before any new mutation is appended.");
+        }
+        if (fromPosition > channel.size()) {
+            throw new IOException("Mutation log ends at " + channel.size() + " but replay was asked to start at " + fromPosition + ".");
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(fromPosition)), 64 * 1024));
+        long validEnd = fromPosition;
+        int replayed = 0;
+        CRC32 crc = new CRC32();
+        while (true) {
+            byte[] payload;
+            try {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_BYTES) {
+                    break;
+                }
+                payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+            } catch (EOFException e) {
+                break;
+            }
+            try {
+                apply(payload, patientService, appointmentService);
+            } catch (HospitalSystemException e) {
+                throw new IOException("Corrupt mutation record at offset " + validEnd + ": " + e.getMessage(), e);
+            }
+            validEnd += HEADER_BYTES + payload.length;
+            replayed++;
+        }
+        if (validEnd < channel.size()) {
+            channel.truncate(validEnd);
+        }
+        channel.position(validEnd);
+        position = validEnd;
+        durablePosition = validEnd;
+        return replayed;
+    }
+
+    public long append(byte[] payload) {
+        return append(() -> payload);
+    }
+
+    public synchronized long append(Supplier<byte[]> mutation) {
+        requireAppendable();
+        write(mutation.get());
+        return ++appendedSequence;
+    }
+
+    public synchronized long appendAll(Supplier<List<byte[]>> mutations) {
+        requireAppendable();
+        for (byte[] payload : mutations.get()) {
+            write(payload);
+        }
+        return ++appendedSequence;
+    }
+
+    private void requireAppendable() {
+        if (readOnly) {
+            throw new IllegalStateException("The mutation log of a replica only accepts replicated records.");
+        }
+        if (failure != null) {
+            throw new IllegalStateException("Mutation log is unavailable: " + failure.getMessage());
+        }
+    }
+
+    private void write(byte[] payload) {
+        int recordBytes = HEADER_BYTES + payload.length;
+        if (pending.remaining() < recordBytes) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + recordBytes));
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        pending.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        position += recordBytes;
+    }
+
+    public void awaitDurable(long sequence) throws HospitalSystemException {
+        ByteBuffer batch;
+        long batchSequence;
+        long batchEnd;
+        synchronized (this) {
+            while (true) {
+                if (failure != null) {
+                    throw new HospitalSystemException("Mutation log is unavailable: " + failure.getMessage());
+                }
+                if (durableSequence >= sequence) {
+                    return;
+                }
+                if (!flushing) {
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new HospitalSystemException("Interrupted while waiting for the mutation log.");
+                }
+            }
+            flushing = true;
+            batch = pending;
+            pending = spare;
+            batchSequence = appendedSequence;
+            batchEnd = position;
+        }
+        IOException error = null;
+        try {
+            batch.flip();
+            while (batch.hasRemaining()) {
+                channel.write(batch);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            error = e;
+        }
+        batch.clear();
+        synchronized (this) {
+            flushing = false;
+            spare = batch;
+            if (error == null) {
+                durableSequence = batchSequence;
+                durablePosition = batchEnd;
+            } else {
+                failure = error;
+            }
+            notifyAll();
+        }
+        if (error != null) {
+            throw new HospitalSystemException("Failed to write mutation log: " + error.getMessage());
+        }
+    }
+
+    public synchronized long position() {
+        return position;
+    }
+
+    public synchronized long awaitDurablePosition(long beyond, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long remaining = timeoutMillis;
+        while (durablePosition <= beyond && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return durablePosition;
+    }
+
+    FileChannel openReader() throws IOException {
+        return FileChannel.open(path, StandardOpenOption.READ);
+    }
+
+    public synchronized boolean isReadOnly() {
+        return readOnly;
+    }
+
+    public synchronized void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    public void requireWritable() throws ReadOnlyReplicaException {
+        if (isReadOnly()) {
+            throw new ReadOnlyReplicaException();
+        }
+    }
+
+    public synchronized void appendReplicated(long atPosition, byte[] records, int length, PatientService patientService,
+                                              AppointmentService appointmentService) throws IOException, HospitalSystemException {
+        if (!readOnly || flushing || pending.position() != 0) {
+            throw new IllegalStateException("Only an idle replica log can accept replicated records.");
+        }
+        if (atPosition != position) {
+            throw new IOException("Replicated records start at " + atPosition + " but the log ends at " + position + ".");
+        }
+        List<byte[]> payloads = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(records, 0, length);
+        CRC32 crc = new CRC32();
+        while (buffer.hasRemaining()) {
+            if (buffer.remaining() < HEADER_BYTES) {
+                throw new IOException("Replicated batch ends inside a record header.");
+            }
+            int recordLength = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (recordLength <= 0 || recordLength > MAX_RECORD_BYTES || recordLength > buffer.remaining()) {
+                throw new IOException("Replicated record at offset " + (atPosition + buffer.position() - HEADER_BYTES) + " has a bad length.");
+            }
+            byte[] payload = new byte[recordLength];
+            buffer.get(payload);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum) {
+                throw new IOException("Replicated record at offset " + (atPosition + buffer.position() - HEADER_BYTES - recordLength) + " failed its checksum.");
+            }
+            payloads.add(payload);
+        }
+        ByteBuffer out = ByteBuffer.wrap(records, 0, length);
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        channel.force(false);
+        position += length;
+        durablePosition = position;
+        long recordPosition = atPosition;
+        for (byte[] payload : payloads) {
+            try {
+                apply(payload, patientService, appointmentService);
+            } catch (HospitalSystemException e) {
+                throw new HospitalSystemException("The replicated record at offset " + recordPosition + " could not be applied ("
+                                                  + e.getMessage() + "). This replica no longer matches the primary;"
+                                                  + " rebuild it from a copy of the primary's data directory.");
+            }
+            recordPosition += HEADER_BYTES + payload.length;
+        }
+        notifyAll();
+    }
+
+    public synchronized <T> T capture(Function<Long, T> view) {
+        return view.apply(position);
+    }
+
+    public void awaitDurableThrough(long logPosition) throws HospitalSystemException {
+        long sequence;
+        synchronized (this) {
+            if (durablePosition >= logPosition) {
+                return;
+            }
+            sequence = appendedSequence;
+        }
+        awaitDurable(sequence);
+    }
+
+    @Override
+    public void close() throws IOException {
+        long lastSequence;
+        synchronized (this) {
+            lastSequence = appendedSequence;
+        }
+        try {
+            awaitDurable(lastSequence);
+        } catch (HospitalSystemException e) {
+            throw new IOException(e.getMessage(), e);
+        } finally {
+            channel.close();
+        }
+    }
+
+    static byte[] patientRegisteredRecord(Patient patient) {
+        return record(out -> {
+            out.writeByte(PATIENT_REGISTERED);
+            out.writeUTF(patient.getId());
+            out.writeUTF(patient.getName());
+            out.writeInt(patient.getAge());
+            out.writeUTF(patient.getGender());
+            out.writeUTF(patient.getContactNumber());
+        });
+    }
+
+    static byte[] appointmentBookedRecord(Appointment appointment) {
+        return record(out -> {
+            out.writeByte(APPOINTMENT_BOOKED);
+            out.writeUTF(appointment.getAppointmentId());
+            out.writeUTF(appointment.getPatientId());
+            out.writeUTF(appointment.getPatientName());
+            out.writeUTF(appointment.getDoctorName());
+            out.writeLong(appointment.getStartMinute());
+            out.writeUTF(appointment.getReason());
+        });
+    }
+
+    static byte[] appointmentCancelledRecord(String appointmentId) {
+        return record(out -> {
+            out.writeByte(APPOINTMENT_CANCELLED);
+            out.writeUTF(appointmentId);
+        });
+    }
+
+    static void apply(byte[] payload, PatientService patientService, AppointmentService appointmentService) throws IOException, HospitalSystemException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        switch (type) {
+            case PATIENT_REGISTERED:
+                try {
+                    patientService.restorePatient(new Patient(in.readUTF(), in.readUTF(), in.readInt(), in.readUTF(), in.readUTF()));
+                } catch (IllegalArgumentException e) {
+                    throw new HospitalSystemException(e.getMessage());
+                }
+                break;
+            case APPOINTMENT_BOOKED:
+                appointmentService.restoreAppointment(new Appointment(in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(), in.readLong(), in.readUTF()));
+                break;
+            case APPOINTMENT_CANCELLED:
+                appointmentService.restoreCancellation(in.readUTF());
+                break;
+            default:
+                throw new HospitalSystemException("Unknown mutation record type " + type + ".");
+        }
+    }
+
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] record(RecordWriter writer) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(96);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writer.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
+
+class PointInTimeView {
+    final long logPosition;
+    final long lastPatientId;
+    final long lastAppointmentId;
+    final Collection<Patient> patients;
+    final AppointmentStore.View appointments;
+
+    PointInTimeView(long logPosition, long lastPatientId, long lastAppointmentId,
+                    Collection<Patient> patients, AppointmentStore.View appointments) {
+        this.logPosition = logPosition;
+        this.lastPatientId = lastPatientId;
+        this.lastAppointmentId = lastAppointmentId;
+        this.patients = patients;
+        this.appointments = appointments;
+    }
+}
+
+class SnapshotStore {
+    private static final int MAGIC = 0x48534E50;
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 8 + 8 + 4 + 4 + 8;
+    private static final int VERSION_1_HEADER_BYTES = 4 + 4 + 8 + 4 + 4 + 4 + 4 + 8;
+    private static final int BUFFER_BYTES = 1 << 20;
+
+    private final Path path;
+
+    public SnapshotStore(Path path) {
+        this.path = path;
+    }
+
+    public synchronized long write(AppointmentService appointmentService) throws IOException {
+        PointInTimeView view = appointmentService.capturePointInTime();
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        long patientCount = 0;
+        long appointmentCount = 0;
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+            channel.position(HEADER_BYTES);
+            for (Patient patient : view.patients) {
+                ensureRoom(channel, buffer, crc, patient.getName().length() * 3 + patient.getGender().length() * 3
+                                                 + patient.getContactNumber().length() * 3 + patient.getId().length() * 3 + 20);
+                putString(buffer, patient.getId());
+                putString(buffer, patient.getName());
+                buffer.putInt(patient.getAge());
+                putString(buffer, patient.getGender());
+                putString(buffer, patient.getContactNumber());
+                patientCount++;
+            }
+            for (Appointment appointment : view.appointments) {
+                ensureRoom(channel, buffer, crc, (appointment.getAppointmentId().length() + appointment.getPatientId().length()
+                                                  + appointment.getPatientName().length() + appointment.getDoctorName().length()
+                                                  + appointment.getReason().length()) * 3 + 28);
+                putString(buffer, appointment.getAppointmentId());
+                putString(buffer, appointment.getPatientId());
+                putString(buffer, appointment.getPatientName());
+                putString(buffer, appointment.getDoctorName());
+                buffer.putLong(appointment.getStartMinute());
+                putString(buffer, appointment.getReason());
+                appointmentCount++;
+            }
+            drain(channel, buffer, crc);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putLong(view.logPosition)
+                  .putLong(view.lastPatientId).putLong(view.lastAppointmentId)
+                  .putInt((int) patientCount).putInt((int) appointmentCount).putLong(crc.getValue());
+            header.flip();
+            channel.write(header, 0);
+            channel.force(true);
+        }
+        try {
+            appointmentService.awaitDurable(view);
+        } catch (HospitalSystemException e) {
+            throw new IOException("Snapshot covers log records that are not durable: " + e.getMessage(), e);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return view.logPosition;
+    }
+
+    public long load(PatientService patientService, AppointmentService appointmentService) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < VERSION_1_HEADER_BYTES || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot " + path + " has an unsupported size.");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int version = buffer.getInt(4);
+            if (buffer.getInt() != MAGIC || (version != VERSION && version != 1) || (version == VERSION && channel.size() < HEADER_BYTES)) {
+                throw new IOException("Snapshot " + path + " is not a hospital snapshot.");
+            }
+            buffer.getInt();
+            long logPosition = buffer.getLong();
+            long lastPatientId = version == 1 ? buffer.getInt() : buffer.getLong();
+            long lastAppointmentId = version == 1 ? buffer.getInt() : buffer.getLong();
+            int patientCount = buffer.getInt();
+            int appointmentCount = buffer.getInt();
+            long checksum = buffer.getLong();
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate());
+            if (crc.getValue() != checksum) {
+                throw new IOException("Snapshot " + path + " failed its checksum.");
+            }
+            byte[] scratch = new byte[256];
+            try {
+                for (int i = 0; i < patientCount; i++) {
+                    String id = getString(buffer, scratch);
+                    String name = getString(buffer, scratch);
+                    int age = buffer.getInt();
+                    patientService.restorePatient(new Patient(id, name, age, getString(buffer, scratch), getString(buffer, scratch)));
+                }
+                for (int i = 0; i < appointmentCount; i++) {
+                    String appointmentId = getString(buffer, scratch);
+                    String patientId = getString(buffer, scratch);
+                    String patientName = getString(buffer, scratch);
+                    String doctorName = getString(buffer, scratch);
+                    long startMinute = buffer.getLong();
+                    appointmentService.restoreAppointment(new Appointment(appointmentId, patientId, patientName, doctorName,
+                                                                          startMinute, getString(buffer, scratch)));
+                }
+            } catch (HospitalSystemException | IllegalArgumentException e) {
+                throw new IOException("Snapshot " + path + " is corrupt: " + e.getMessage(), e);
+            }
+            patientService.restoreLastIssuedId(lastPatientId);
+            appointmentService.restoreLastIssuedId(lastAppointmentId);
+            return logPosition;
+        }
+    }
+
+    private static void ensureRoom(FileChannel channel, ByteBuffer buffer, CRC32 crc, int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            drain(channel, buffer, crc);
+        }
+        if (buffer.remaining() < bytes) {
+            throw new IOException("Record of " + bytes + " bytes does not fit in the snapshot buffer.");
+        }
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer, CRC32 crc) throws IOException {
+        buffer.flip();
+        crc.update(buffer.duplicate());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length).put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer, byte[] scratch) {
+        int length = buffer.getInt();
+        byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+        buffer.get(bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+}
+
+class ReplicationServer implements Closeable {
+    static final int MAX_BATCH_BYTES = 4 << 20;
+    static final long HEARTBEAT_MILLIS = 1_000;
+    static final int DIVERGED = -1;
+
+    private final ServerSocket serverSocket;
+    private final MutationLog mutationLog;
+    private final Set<Socket> replicas = ConcurrentHashMap.newKeySet();
+
+    ReplicationServer(String bindAddress, int port, MutationLog mutationLog) throws IOException {
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getByName(bindAddress));
+        this.mutationLog = mutationLog;
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    int connectedReplicas() {
+        return replicas.size();
+    }
+
+    void start() {
+        Thread acceptor = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    socket.setTcpNoDelay(true);
+                    Thread shipper = new Thread(() -> ship(socket), "replication-shipper");
+                    shipper.setDaemon(true);
+                    shipper.start();
+                } catch (IOException e) {
+                    if (!serverSocket.isClosed()) {
+                        System.err.println("Replication listener error: " + e.getMessage());
+                    }
+                }
+            }
+        }, "replication-listener");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void ship(Socket socket) {
+        replicas.add(socket);
+        try (Socket connection = socket;
+             FileChannel reader = mutationLog.openReader();
+             DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream(), 64 * 1024))) {
+            long position = in.readLong();
+            ByteBuffer batch = ByteBuffer.allocate(MAX_BATCH_BYTES);
+            while (true) {
+                long durable = mutationLog.awaitDurablePosition(position, HEARTBEAT_MILLIS);
+                out.writeLong(System.currentTimeMillis());
+                out.writeLong(durable);
+                if (position > durable) {
+                    out.writeInt(DIVERGED);
+                    out.flush();
+                    return;
+                }
+                batch.clear().limit((int) Math.min(MAX_BATCH_BYTES, durable - position));
+                while (batch.hasRemaining()) {
+                    if (reader.read(batch, position + batch.position()) < 0) {
+                        throw new EOFException("Mutation log ended before its durable position.");
+                    }
+                }
+                int length = wholeRecords(batch);
+                out.writeInt(length);
+                out.write(batch.array(), 0, length);
+                out.flush();
+                position += length;
+            }
+        } catch (IOException e) {
+            System.err.println("Replica " + socket.getRemoteSocketAddress() + " disconnected: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            replicas.remove(socket);
+        }
+    }
+
+    private static int wholeRecords(ByteBuffer batch) {
+        int end = 0;
+        while (end + 8 <= batch.position()) {
+            int next = end + 8 + batch.getInt(end);
+            if (next > batch.position()) {
+                break;
+            }
+            end = next;
+        }
+        return end;
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        for (Socket replica : replicas) {
+            replica.close();
+        }
+    }
+}
+
+class ReplicationClient implements Closeable {
+    private static final long RETRY_MILLIS = 1_000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5_000;
+    private static final int READ_TIMEOUT_MILLIS = (int) (3 * ReplicationServer.HEARTBEAT_MILLIS);
+
+    private final String host;
+    private final int port;
+    private final MutationLog mutationLog;
+    private final PatientService patientService;
+    private final AppointmentService appointmentService;
+    private final Runnable onPromotion;
+    private volatile boolean running = true;
+    private volatile boolean connected;
+    private volatile boolean stopped;
+    private volatile long primaryPosition;
+    private volatile long lastCaughtUpMillis = System.currentTimeMillis();
+    private volatile String lastError;
+    private Socket socket;
+
+    ReplicationClient(String primaryAddress, MutationLog mutationLog, PatientService patientService,
+                      AppointmentService appointmentService, Runnable onPromotion) {
+        int colon = primaryAddress.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Primary address '" + primaryAddress + "' must look like host:port.");
+        }
+        this.host = primaryAddress.substring(0, colon).trim();
+        this.port = Integer.parseInt(primaryAddress.substring(colon + 1).trim());
+        this.mutationLog = mutationLog;
+        this.patientService = patientService;
+        this.appointmentService = appointmentService;
+        this.onPromotion = onPromotion;
+    }
+
+    void start() {
+        mutationLog.setReadOnly(true);
+        Thread thread = new Thread(this::run, "replication-client");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        byte[] batch = new byte[ReplicationServer.MAX_BATCH_BYTES];
+        while (running) {
+            try (Socket connection = connect();
+                 DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream(), 64 * 1024));
+                 DataOutputStream out = new DataOutputStream(connection.getOutputStream())) {
+                out.writeLong(mutationLog.position());
+                out.flush();
+                connected = true;
+                lastError = null;
+                while (running) {
+                    in.readLong();
+                    long durable = in.readLong();
+                    int length = in.readInt();
+                    if (length == ReplicationServer.DIVERGED) {
+                        throw new IOException("this replica's log is ahead of the primary's; it cannot follow it");
+                    }
+                    in.readFully(batch, 0, length);
+                    if (length > 0) {
+                        mutationLog.appendReplicated(mutationLog.position(), batch, length, patientService, appointmentService);
+                    }
+                    primaryPosition = durable;
+                    if (mutationLog.position() >= durable) {
+                        lastCaughtUpMillis = System.currentTimeMillis();
+                    }
+                }
+            } catch (HospitalSystemException e) {
+                lastError = e.getMessage();
+                stopped = true;
+                System.err.println("Replication stopped: " + e.getMessage());
+                return;
+            } catch (IOException | RuntimeException e) {
+                if (running) {
+                    lastError = e.getMessage();
+                }
+            } finally {
+                connected = false;
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private synchronized Socket connect() throws IOException {
+        if (!running) {
+            throw new IOException("replication stopped");
+        }
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+        socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    synchronized void promote() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        disconnect();
+        mutationLog.setReadOnly(false);
+        onPromotion.run();
+    }
+
+    boolean isReplicating() {
+        return running;
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    boolean isStopped() {
+        return stopped;
+    }
+
+    String getPrimaryAddress() {
+        return host + ":" + port;
+    }
+
+    String getLastError() {
+        return lastError;
+    }
+
+    long getLagBytes() {
+        return Math.max(0, primaryPosition - mutationLog.position());
+    }
+
+    long getLagMillis() {
+        if (connected && mutationLog.position() >= primaryPosition) {
+            return 0;
+        }
+        return System.currentTimeMillis() - lastCaughtUpMillis;
+    }
+
+    private void disconnect() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        running = false;
+        disconnect();
+    }
+}
+
+class PatientImporter {
+    private static final int CHUNK_BYTES = 4 << 20;
+    private static final int BATCH_ROWS = 5_000;
+    private static final int MAX_REPORTED_ERRORS = 1_000;
+    private static final int MAX_QUOTED_LINE_BREAKS = 16;
+    private static final String HEADER = "name,age,gender,contact";
+    private static final String EXPORT_HEADER = "id," + HEADER;
+
+    interface ProgressListener {
+        void onProgress(long bytesRead, long totalBytes, long imported, long rejected);
+    }
+
+    static class Row {
+        final String name;
+        final int age;
+        final String gender;
+        final String contactNumber;
+
+        Row(String name, int age, String gender, String contactNumber) {
+            this.name = name;
+            this.age = age;
+            this.gender = gender;
+            this.contactNumber = contactNumber;
+        }
+    }
+
+    static class Result {
+        final long imported;
+        final long rejected;
+        final List<String> errors;
+
+        Result(long imported, long rejected, List<String> errors) {
+            this.imported = imported;
+            this.rejected = rejected;
+            this.errors = errors;
+        }
+    }
+
+    private static class ParsedChunk {
+        final List<Row> rows = new ArrayList<>();
+        final List<Integer> errorLines = new ArrayList<>();
+        final List<String> errorMessages = new ArrayList<>();
+        int lines;
+    }
+
+    private final PatientService patientService;
+    private final int parallelism;
+
+    public PatientImporter(PatientService patientService) {
+        this(patientService, Runtime.getRuntime().availableProcessors());
+    }
+
+    public PatientImporter(PatientService patientService, int parallelism) {
+        this.patientService = patientService;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public Result importCsv(Path file, ProgressListener listener) throws IOException, HospitalSystemException {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        Deque<ForkJoinTask<ParsedChunk>> inFlight = new ArrayDeque<>();
+        List<String> errors = new ArrayList<>();
+        long imported = 0;
+        long rejected = 0;
+        long linesDone = 0;
+        long bytesRead = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long totalBytes = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK_BYTES);
+            boolean firstChunk = true;
+            boolean exported = false;
+            boolean eof = false;
+            while (!eof) {
+                int read = channel.read(buffer);
+                eof = read < 0;
+                if (read > 0) {
+                    bytesRead += read;
+                }
+                if (!eof && buffer.hasRemaining()) {
+                    continue;
+                }
+                buffer.flip();
+                int end = eof ? buffer.limit() : lastRecordEnd(buffer) + 1;
+                if (end == 0 && !eof) {
+                    ByteBuffer grown = ByteBuffer.allocate(buffer.capacity() * 2);
+                    grown.put(buffer);
+                    buffer = grown;
+                    continue;
+                }
+                byte[] chunk = new byte[end];
+                buffer.get(chunk);
+                buffer.compact();
+                if (chunk.length > 0) {
+                    boolean header = firstChunk;
+                    if (firstChunk) {
+                        exported = isExportHeader(chunk);
+                    }
+                    boolean withIds = exported;
+                    inFlight.addLast(pool.submit(() -> parse(chunk, header, withIds)));
+                    firstChunk = false;
+                }
+                while (inFlight.size() > parallelism || (eof && !inFlight.isEmpty())) {
+                    ParsedChunk parsed = inFlight.removeFirst().join();
+                    for (int from = 0; from < parsed.rows.size(); from += BATCH_ROWS) {
+                        imported += patientService.registerPatients(
+                                parsed.rows.subList(from, Math.min(parsed.rows.size(), from + BATCH_ROWS)));
+                    }
+                    for (int i = 0; i < parsed.errorLines.size(); i++) {
+                        if (errors.size() < MAX_REPORTED_ERRORS) {
+                            errors.add("Line " + (linesDone + parsed.errorLines.get(i)) + ": " + parsed.errorMessages.get(i));
+                        }
+                    }
+                    rejected += parsed.errorLines.size();
+                    linesDone += parsed.lines;
+                    if (listener != null) {
+                        listener.onProgress(bytesRead - buffer.position(), totalBytes, imported, rejected);
+                    }
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return new Result(imported, rejected, errors);
+    }
+
+    private static int lastRecordEnd(ByteBuffer buffer) {
+        int last = -1;
+        boolean quoted = false;
+        int embeddedNewlines = 0;
+        for (int i = 0; i < buffer.limit(); i++) {
+            byte b = buffer.get(i);
+            if (b == '"') {
+                quoted = !quoted;
+            } else if (b == '\n') {
+                if (quoted && embeddedNewlines < MAX_QUOTED_LINE_BREAKS) {
+                    embeddedNewlines++;
+                } else {
+                    last = i;
+                    quoted = false;
+                    embeddedNewlines = 0;
+                }
+            }
+        }
+        return last;
+    }
+
+    private static boolean isExportHeader(byte[] chunk) {
+        int end = 0;
+        while (end < chunk.length && chunk[end] != '\n') {
+            end++;
+        }
+        String line = new String(chunk, 0, end, StandardCharsets.UTF_8).replace("\uFEFF", "").replace(" ", "").trim();
+        return line.equalsIgnoreCase(EXPORT_HEADER);
+    }
+
+    private static ParsedChunk parse(byte[] chunk, boolean firstChunk, boolean withIds) {
+        ParsedChunk parsed = new ParsedChunk();
+        String text = new String(chunk, StandardCharsets.UTF_8);
+        int start = firstChunk && text.charAt(0) == '\uFEFF' ? 1 : 0;
+        List<String> fields = new ArrayList<>(4);
+        while (start < text.length()) {
+            int end = start;
+            int embeddedNewlines = 0;
+            boolean quoted = false;
+            for (; end < text.length(); end++) {
+                char c = text.charAt(end);
+                if (c == '"') {
+                    quoted = !quoted;
+                } else if (c == '\n') {
+                    if (!quoted || embeddedNewlines == MAX_QUOTED_LINE_BREAKS) {
+                        break;
+                    }
+                    embeddedNewlines++;
+                }
+            }
+            int lineEnd = end > start && text.charAt(end - 1) == '\r' ? end - 1 : end;
+            String record = text.substring(start, lineEnd);
+            start = end + 1;
+            int line = parsed.lines + 1;
+            parsed.lines += 1 + embeddedNewlines;
+            if (record.trim().isEmpty() || (firstChunk && line == 1 && isHeader(record))) {
+                continue;
+            }
+            String error = parseRow(record, withIds, fields, parsed.rows);
+            if (error != null) {
+                parsed.errorLines.add(line);
+                parsed.errorMessages.add(error);
+            }
+        }
+        return parsed;
+    }
+
+    private static boolean isHeader(String line) {
+        String columns = line.replace(" ", "");
+        return columns.equalsIgnoreCase(HEADER) || columns.equalsIgnoreCase(EXPORT_HEADER);
+    }
+
+    private static String parseRow(String line, boolean withIds, List<String> fields, List<Row> rows) {
+        fields.clear();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        int quotedFrom = -1;
+        int quotedTo = -1;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                    quotedTo = field.length();
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+                if (quotedFrom < 0) {
+                    quotedFrom = field.length();
+                }
+            } else if (c == ',') {
+                fields.add(trimUnquoted(field, quotedFrom, quotedTo));
+                field.setLength(0);
+                quotedFrom = -1;
+                quotedTo = -1;
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            return "unterminated quoted field (a quoted field may span at most " + (MAX_QUOTED_LINE_BREAKS + 1) + " lines)";
+        }
+        fields.add(trimUnquoted(field, quotedFrom, quotedTo));
+        if (withIds) {
+            if (fields.size() != 5) {
+                return "expected 5 fields (id, name, age, gender, contact) but found " + fields.size();
+            }
+            fields.remove(0);
+        }
+        if (fields.size() != 4) {
+            return "expected 4 fields (name, age, gender, contact) but found " + fields.size();
+        }
+        int age;
+        try {
+            age = Integer.parseInt(fields.get(1).trim());
+        } catch (NumberFormatException e) {
+            return "age '" + fields.get(1) + "' is not a number";
+        }
+        String error = Patient.validationError(fields.get(0), age, fields.get(2), fields.get(3));
+        if (error != null) {
+            return error;
+        }
+        rows.add(new Row(fields.get(0), age, fields.get(2), fields.get(3)));
+        return null;
+    }
+
+    private static String trimUnquoted(StringBuilder field, int quotedFrom, int quotedTo) {
+        int from = 0;
+        int to = field.length();
+        while (from < to && (quotedFrom < 0 || from < quotedFrom) && field.charAt(from) <= ' ') {
+            from++;
+        }
+        while (to > from && (quotedTo < 0 || to > quotedTo) && field.charAt(to - 1) <= ' ') {
+            to--;
+        }
+        return field.substring(from, to);
+    }
+}
+
+class RegistryExporter {
+    private static final int BUFFER_BYTES = 8 << 20;
+    private static final DateTimeFormatter DIRECTORY_STAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+
+    enum Format {
+        CSV("csv"), JSON_LINES("jsonl");
+
+        final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        static Format parse(String value) throws HospitalSystemException {
+            for (Format format : values()) {
+                if (format.extension.equalsIgnoreCase(value.trim()) || format.name().equalsIgnoreCase(value.trim())) {
+                    return format;
+                }
+            }
+            throw new HospitalSystemException("Unknown export format '" + value + "'. Use csv or jsonl.");
+        }
+    }
+
+    static class Result {
+        final long logPosition;
+        final long patients;
+        final long appointments;
+        final Path patientsFile;
+        final Path appointmentsFile;
+
+        Result(long logPosition, long patients, long appointments, Path patientsFile, Path appointmentsFile) {
+            this.logPosition = logPosition;
+            this.patients = patients;
+            this.appointments = appointments;
+            this.patientsFile = patientsFile;
+            this.appointmentsFile = appointmentsFile;
+        }
+    }
+
+    public static Result export(AppointmentService appointmentService, Path directory, Format format) throws IOException {
+        PointInTimeView view = appointmentService.capturePointInTime();
+        Path exportDirectory = directory.resolve("registry-" + LocalDateTime.now().format(DIRECTORY_STAMP));
+        Path temporaryDirectory = exportDirectory.resolveSibling(exportDirectory.getFileName() + ".tmp");
+        Files.createDirectories(temporaryDirectory);
+        Path patientsFile = temporaryDirectory.resolve("patients." + format.extension);
+        Path appointmentsFile = temporaryDirectory.resolve("appointments." + format.extension);
+        long patients = 0;
+        long appointments = 0;
+        try {
+            patients = writePatients(view, patientsFile, format);
+            appointments = writeAppointments(view, appointmentsFile, format);
+            Files.move(temporaryDirectory, exportDirectory, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(patientsFile);
+            Files.deleteIfExists(appointmentsFile);
+            Files.deleteIfExists(temporaryDirectory);
+            throw e;
+        }
+        return new Result(view.logPosition, patients, appointments, exportDirectory.resolve(patientsFile.getFileName()),
+                          exportDirectory.resolve(appointmentsFile.getFileName()));
+    }
+
+    private static long writePatients(PointInTimeView view, Path patientsFile, Format format) throws IOException {
+        long patients = 0;
+        try (Output out = new Output(patientsFile)) {
+            if (format == Format.CSV) {
+                out.text("id,name,age,gender,contact\n");
+            }
+            for (Patient patient : view.patients) {
+                if (format == Format.CSV) {
+                    out.csv(patient.getId()).text(",").csv(patient.getName()).text(",").number(patient.getAge())
+                       .text(",").csv(patient.getGender()).text(",").csv(patient.getContactNumber()).text("\n");
+                } else {
+                    out.text("{\"id\":").json(patient.getId()).text(",\"name\":").json(patient.getName())
+                       .text(",\"age\":").number(patient.getAge()).text(",\"gender\":").json(patient.getGender())
+                       .text(",\"contact\":").json(patient.getContactNumber()).text("}\n");
+                }
+                patients++;
+            }
+        }
+        return patients;
+    }
+
+    private static long writeAppointments(PointInTimeView view, Path appointmentsFile, Format format) throws IOException {
+        long appointments = 0;
+        try (Output out = new Output(appointmentsFile)) {
+            if (format == Format.CSV) {
+                out.text("id,patient_id,patient_name,doctor,date,time,reason\n");
+            }
+            for (Appointment appointment : view.appointments) {
+                long start = appointment.getStartMinute();
+                if (format == Format.CSV) {
+                    out.csv(appointment.getAppointmentId()).text(",").csv(appointment.getPatientId()).text(",")
+                       .csv(appointment.getPatientName()).text(",").csv(appointment.getDoctorName()).text(",")
+                       .date(start).text(",").time(start).text(",").csv(appointment.getReason()).text("\n");
+                } else {
+                    out.text("{\"id\":").json(appointment.getAppointmentId())
+                       .text(",\"patientId\":").json(appointment.getPatientId())
+                       .text(",\"patientName\":").json(appointment.getPatientName())
+                       .text(",\"doctor\":").json(appointment.getDoctorName())
+                       .text(",\"start\":\"").date(start).text("T").time(start)
+                       .text("\",\"reason\":").json(appointment.getReason()).text("}\n");
+                }
+                appointments++;
+            }
+        }
+        return appointments;
+    }
+
+    private static class Output implements Closeable {
+        private final FileChannel channel;
+        private final byte[] buffer = new byte[BUFFER_BYTES];
+        private int length;
+
+        Output(Path path) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                       StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        Output text(String value) throws IOException {
+            for (int i = 0; i < value.length(); ) {
+                i = put(value, i);
+            }
+            return this;
+        }
+
+        Output csv(String value) throws IOException {
+            boolean quote = false;
+            for (int i = 0; i < value.length() && !quote; i++) {
+                char c = value.charAt(i);
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (!quote) {
+                return text(value);
+            }
+            byteOut('"');
+            for (int i = 0; i < value.length(); ) {
+                if (value.charAt(i) == '"') {
+                    byteOut('"');
+                }
+                i = put(value, i);
+            }
+            byteOut('"');
+            return this;
+        }
+
+        Output json(String value) throws IOException {
+            byteOut('"');
+            for (int i = 0; i < value.length(); ) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    byteOut('\\');
+                    byteOut(c);
+                    i++;
+                } else if (c < 0x20) {
+                    text(String.format("\\u%04x", (int) c));
+                    i++;
+                } else {
+                    i = put(value, i);
+                }
+            }
+            byteOut('"');
+            return this;
+        }
+
+        Output number(long value) throws IOException {
+            return text(Long.toString(value));
+        }
+
+        Output date(long startMinute) throws IOException {
+            LocalDate date = LocalDate.ofEpochDay(Math.floorDiv(startMinute, Appointment.MINUTES_PER_DAY));
+            if (date.getYear() < 0 || date.getYear() > 9999) {
+                return text(date.toString());
+            }
+            digits(date.getYear(), 4);
+            byteOut('-');
+            digits(date.getMonthValue(), 2);
+            byteOut('-');
+            return digits(date.getDayOfMonth(), 2);
+        }
+
+        Output time(long startMinute) throws IOException {
+            int minuteOfDay = Math.floorMod(startMinute, Appointment.MINUTES_PER_DAY);
+            digits(minuteOfDay / 60, 2);
+            byteOut(':');
+            return digits(minuteOfDay % 60, 2);
+        }
+
+        private Output digits(int value, int count) throws IOException {
+            for (int divisor = (int) Math.pow(10, count - 1); divisor > 0; divisor /= 10) {
+                byteOut('0' + value / divisor % 10);
+            }
+            return this;
+        }
+
+        private int put(String value, int index) throws IOException {
+            char c = value.charAt(index);
+            if (c < 0x80) {
+                byteOut(c);
+            } else if (c < 0x800) {
+                byteOut(0xC0 | c >> 6);
+                byteOut(0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && index + 1 < value.length()
+                       && Character.isLowSurrogate(value.charAt(index + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(index + 1));
+                byteOut(0xF0 | codePoint >> 18);
+                byteOut(0x80 | codePoint >> 12 & 0x3F);
+                byteOut(0x80 | codePoint >> 6 & 0x3F);
+                byteOut(0x80 | codePoint & 0x3F);
+                return index + 2;
+            } else if (Character.isSurrogate(c)) {
+                byteOut('?');
+            } else {
+                byteOut(0xE0 | c >> 12);
+                byteOut(0x80 | c >> 6 & 0x3F);
+                byteOut(0x80 | c & 0x3F);
+            }
+            return index + 1;
+        }
+
+        private void byteOut(int b) throws IOException {
+            if (length == buffer.length) {
+                drain();
+            }
+            buffer[length++] = (byte) b;
+        }
+
+        private void drain() throws IOException {
+            ByteBuffer pending = ByteBuffer.wrap(buffer, 0, length);
+            while (pending.hasRemaining()) {
+                channel.write(pending);
+            }
+            length = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                drain();
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
+
+interface HospitalShard extends Closeable {
+    int node() throws HospitalSystemException;
+
+    Patient registerPatientWithId(String patientId, String name, int age, String gender, String contactNumber) throws HospitalSystemException;
+
+    List<Patient> findLikelyDuplicates(String name, int age, String contactNumber) throws HospitalSystemException;
+
+    Optional<Patient> findPatientById(String patientId) throws HospitalSystemException;
+
+    Appointment bookAppointment(String patientId, String doctorName, LocalDate date, LocalTime time, String reason) throws HospitalSystemException;
+
+    List<Appointment> getAppointmentsByPatientId(String patientId) throws HospitalSystemException;
+
+    Appointment cancelAppointment(String appointmentId) throws HospitalSystemException;
+
+    List<Appointment> getAllAppointments() throws HospitalSystemException;
+
+    @Override
+    default void close() throws IOException {
+    }
+}
+
+class LocalShard implements HospitalShard {
+    private final int node;
+    private final PatientService patientService;
+    private final AppointmentService appointmentService;
+
+    LocalShard(int node, PatientService patientService, AppointmentService appointmentService) {
+        this.node = node;
+        this.patientService = patientService;
+        this.appointmentService = appointmentService;
+    }
+
+    static LocalShard inMemory(int node, String idScheme) {
+        PatientService patientService = new PatientService(null, new ObjectPatientStore(), IdGenerator.create(idScheme, node));
+        return new LocalShard(node, patientService, new AppointmentService(patientService, null, IdGenerator.create(idScheme, node)));
+    }
+
+    @Override
+    public int node() {
+        return node;
+    }
+
+    @Override
+    public Patient registerPatientWithId(String patientId, String name, int age, String gender, String contactNumber) throws HospitalSystemException {
+        return patientService.registerPatientWithId(patientId, name, age, gender, contactNumber);
+    }
+
+    @Override
+    public List<Patient> findLikelyDuplicates(String name, int age, String contactNumber) {
+        return patientService.findLikelyDuplicates(name, age, contactNumber);
+    }
+
+    @Override
+    public Optional<Patient> findPatientById(String patientId) {
+        return patientService.findPatientById(patientId);
+    }
+
+    @Override
+    public Appointment bookAppointment(String patientId, String doctorName, LocalDate date, LocalTime time, String reason) throws HospitalSystemException {
+        return appointmentService.bookAppointment(patientId, doctorName, date, time, reason);
+    }
+
+    @Override
+    public List<Appointment> getAppointmentsByPatientId(String patientId) throws PatientNotFoundException {
+        return appointmentService.getAppointmentsByPatientId(patientId);
+    }
+
+    @Override
+    public Appointment cancelAppointment(String appointmentId) throws HospitalSystemException {
+        return appointmentService.cancel(appointmentId);
+    }
+
+    @Override
+    public List<Appointment> getAllAppointments() {
+        return appointmentService.getAllAppointments();
+    }
+}
+
+class ShardProtocol {
+    static final byte NODE = 0;
+    static final byte REGISTER_PATIENT = 1;
+    static final byte FIND_LIKELY_DUPLICATES = 2;
+    static final byte FIND_PATIENT = 3;
+    static final byte BOOK_APPOINTMENT = 4;
+    static final byte APPOINTMENTS_BY_PATIENT = 5;
+    static final byte CANCEL_APPOINTMENT = 6;
+    static final byte ALL_APPOINTMENTS = 7;
+
+    static final byte OK = 0;
+    static final byte FAILED = 1;
+    static final byte PATIENT_NOT_FOUND = 2;
+    static final byte APPOINTMENT_NOT_FOUND = 3;
+
+    static void writePatient(DataOutputStream out, Patient patient) throws IOException {
+        out.writeUTF(patient.getId());
+        out.writeUTF(patient.getName());
+        out.writeInt(patient.getAge());
+        out.writeUTF(patient.getGender());
+        out.writeUTF(patient.getContactNumber());
+    }
+
+    static Patient readPatient(DataInputStream in) throws IOException {
+        try {
+            return new Patient(in.readUTF(), in.readUTF(), in.readInt(), in.readUTF(), in.readUTF());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed patient: " + e.getMessage(), e);
+        }
+    }
+
+    static void writePatients(DataOutputStream out, List<Patient> patients) throws IOException {
+        out.writeInt(patients.size());
+        for (Patient patient : patients) {
+            writePatient(out, patient);
+        }
+    }
+
+    static List<Patient> readPatients(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<Patient> patients = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            patients.add(readPatient(in));
+        }
+        return patients;
+    }
+
+    static void writeAppointment(DataOutputStream out, Appointment appointment) throws IOException {
+        out.writeUTF(appointment.getAppointmentId());
+        out.writeUTF(appointment.getPatientId());
+        out.writeUTF(appointment.getPatientName());
+        out.writeUTF(appointment.getDoctorName());
+        out.writeLong(appointment.getStartMinute());
+        out.writeUTF(appointment.getReason());
+    }
+
+    static Appointment readAppointment(DataInputStream in) throws IOException {
+        try {
+            return new Appointment(in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(), in.readLong(), in.readUTF());
+        } catch (HospitalSystemException e) {
+            throw new IOException("Malformed appointment: " + e.getMessage(), e);
+        }
+    }
+
+    static void writeAppointments(DataOutputStream out, List<Appointment> appointments) throws IOException {
+        out.writeInt(appointments.size());
+        for (Appointment appointment : appointments) {
+            writeAppointment(out, appointment);
+        }
+    }
+
+    static List<Appointment> readAppointments(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<Appointment> appointments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            appointments.add(readAppointment(in));
+        }
+        return appointments;
+    }
+}
+
+class ShardServer implements Closeable {
+    private final ServerSocket serverSocket;
+    private final HospitalShard shard;
+    private final ExecutorService connections = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "shard-connection");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    ShardServer(String bindAddress, int port, HospitalShard shard) throws IOException {
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getByName(bindAddress));
+        this.shard = shard;
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    void serve() throws IOException {
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (serverSocket.isClosed()) {
+                    return;
+                }
+                throw e;
+            }
+            socket.setTcpNoDelay(true);
+            connections.execute(() -> handle(socket));
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (Socket connection = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()))) {
+            while (true) {
+                byte request;
+                try {
+                    request = in.readByte();
+                } catch (EOFException e) {
+                    return;
+                }
+                respond(request, in, out);
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Shard connection closed: " + e.getMessage());
+        }
+    }
+
+    private void respond(byte request, DataInputStream in, DataOutputStream out) throws IOException {
+        try {
+            switch (request) {
+                case ShardProtocol.NODE:
+                    int node = shard.node();
+                    out.writeByte(ShardProtocol.OK);
+                    out.writeInt(node);
+                    break;
+                case ShardProtocol.REGISTER_PATIENT:
+                    Patient registered = shard.registerPatientWithId(in.readUTF(), in.readUTF(), in.readInt(), in.readUTF(), in.readUTF());
+                    out.writeByte(ShardProtocol.OK);
+                    ShardProtocol.writePatient(out, registered);
+                    break;
+                case ShardProtocol.FIND_LIKELY_DUPLICATES:
+                    List<Patient> likelyMatches = shard.findLikelyDuplicates(in.readUTF(), in.readInt(), in.readUTF());
+                    out.writeByte(ShardProtocol.OK);
+                    ShardProtocol.writePatients(out, likelyMatches);
+                    break;
+                case ShardProtocol.FIND_PATIENT:
+                    Optional<Patient> patient = shard.findPatientById(in.readUTF());
+                    out.writeByte(ShardProtocol.OK);
+                    out.writeBoolean(patient.isPresent());
+                    if (patient.isPresent()) {
+                        ShardProtocol.writePatient(out, patient.get());
+                    }
+                    break;
+                case ShardProtocol.BOOK_APPOINTMENT:
+                    String patientId = in.readUTF();
+                    String doctorName = in.readUTF();
+                    LocalDateTime start = Appointment.toDateTime(in.readLong());
+                    Appointment booked = shard.bookAppointment(patientId, doctorName, start.toLocalDate(), start.toLocalTime(), in.readUTF());
+                    out.writeByte(ShardProtocol.OK);
+                    ShardProtocol.writeAppointment(out, booked);
+                    break;
+                case ShardProtocol.APPOINTMENTS_BY_PATIENT:
+                    List<Appointment> appointments = shard.getAppointmentsByPatientId(in.readUTF());
+                    out.writeByte(ShardProtocol.OK);
+                    ShardProtocol.writeAppointments(out, appointments);
+                    break;
+                case ShardProtocol.CANCEL_APPOINTMENT:
+                    Appointment cancelled = shard.cancelAppointment(in.readUTF());
+                    out.writeByte(ShardProtocol.OK);
+                    ShardProtocol.writeAppointment(out, cancelled);
+                    break;
+                case ShardProtocol.ALL_APPOINTMENTS:
+                    List<Appointment> allAppointments = shard.getAllAppointments();
+                    out.writeByte(ShardProtocol.OK);
+                    ShardProtocol.writeAppointments(out, allAppointments);
+                    break;
+                default:
+                    throw new IOException("Unknown shard request " + request + ".");
+            }
+        } catch (PatientNotFoundException e) {
+            out.writeByte(ShardProtocol.PATIENT_NOT_FOUND);
+            out.writeUTF(e.getMessage());
+        } catch (AppointmentNotFoundException e) {
+            out.writeByte(ShardProtocol.APPOINTMENT_NOT_FOUND);
+            out.writeUTF(e.getMessage());
+        } catch (HospitalSystemException e) {
+            out.writeByte(ShardProtocol.FAILED);
+            out.writeUTF(e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        connections.shutdownNow();
+    }
+}
+
+class RemoteShard implements HospitalShard {
+    private static final int CONNECT_TIMEOUT_MILLIS = 5_000;
+    private static final int READ_TIMEOUT_MILLIS = 10_000;
+
+    private final String host;
+    private final int port;
+    private Socket socket;
+    private DataInputStream in;
+    private DataOutputStream out;
+
+    RemoteShard(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    static RemoteShard parse(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Shard address '" + address + "' must look like host:port.");
+        }
+        try {
+            return new RemoteShard(address.substring(0, colon).trim(), Integer.parseInt(address.substring(colon + 1).trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Shard address '" + address + "' has an invalid port.");
+        }
+    }
+
+    @Override
+    public synchronized int node() throws HospitalSystemException {
+        try {
+            send(ShardProtocol.NODE);
+            receive(null);
+            return in.readInt();
+        } catch (IOException e) {
+            throw unavailable(e);
+        }
+    }
+
+    @Override
+    public synchronized Patient registerPatientWithId(String patientId, String name, int age, String gender, String contactNumber)
+            throws HospitalSystemException {
+        try {
+            send(ShardProtocol.REGISTER_PATIENT);
+            out.writeUTF(patientId);
+            out.writeUTF(name);
+            out.writeInt(age);
+            out.writeUTF(gender);
+            out.writeUTF(contactNumber);
+            receive(patientId);
+            return ShardProtocol.readPatient(in);
+        } catch (IOException e) {
+            throw unavailable(e);
+        }
+    }
+
+    @Override
+    public synchronized List<Patient> findLikelyDuplicates(String name, int age, String contactNumber) throws HospitalSystemException {
+        try {
+            send(ShardProtocol.FIND_LIKELY_DUPLICATES);
+            out.writeUTF(name);
+            out.writeInt(age);
+            out.writeUTF(contactNumber);
+            receive(null);
+            return ShardProtocol.readPatients(in);
+        } catch (IOException e) {
+            throw unavailable(e);
+        }
+    }
+
+    @Override
+    public synchronized Optional<Patient> findPatientById(String patientId) throws HospitalSystemException {
+        try {
+            send(ShardProtocol.FIND_PATIENT);
+            out.writeUTF(patientId);
+            receive(patientId);
+            return in.readBoolean() ? Optional.of(ShardProtocol.readPatient(in)) : Optional.empty();
+        } catch (IOException e) {
+            throw unavailable(e);
+        }
+    }
+
+    @Override
+    public synchronized Appointment bookAppointment(String patientId, String doctorName, LocalDate date, LocalTime time, String reason)
+            throws HospitalSystemException {
+        try {
+            send(ShardProtocol.BOOK_APPOINTMENT);
+            out.writeUTF(patientId);
+            out.writeUTF(doctorName);
+            out.writeLong(Appointment.toStartMinute(date, time));
+            out.writeUTF(reason);
+            receive(patientId);
+            return ShardProtocol.readAppointment(in);
+        } catch (IOException e) {
+            throw unavailable(e);
+        }
+    }
+
+    @Override
+    public synchronized List<Appointment> getAppointmentsByPatientId(String patientId) throws HospitalSystemException {
+        try {
+            send(ShardProtocol.APPOINTMENTS_BY_PATIENT);
+            out.writeUTF(patientId);
+            receive(patientId);
+            return ShardProtocol.readAppointments(in);
+        } catch (IOException e) {
+            throw unavailable(e);
+        }
+    }
+
+    @Override
+    public synchronized Appointment cancelAppointment(String appointmentId) throws HospitalSystemException {
+        try {
+            send(ShardProtocol.CANCEL_APPOINTMENT);
+            out.writeUTF(appointmentId);
+            receive(appointmentId);
+            return ShardProtocol.readAppointment(in);
+        } catch (IOException e) {
+            throw unavailable(e);
+        }
+    }
+
+    @Override
+    public synchronized List<Appointment> getAllAppointments() throws HospitalSystemException {
+        try {
+            send(ShardProtocol.ALL_APPOINTMENTS);
+            receive(null);
+            return ShardProtocol.readAppointments(in);
+        } catch (IOException e) {
+            throw unavailable(e);
+        }
+    }
+
+    private void send(byte request) throws IOException {
+        if (socket == null) {
+            socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+                socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            } catch (IOException e) {
+                disconnect();
+                throw e;
+            }
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+        out.writeByte(request);
+    }
+
+    private void receive(String requestedId) throws IOException, HospitalSystemException {
+        out.flush();
+        byte status = in.readByte();
+        if (status == ShardProtocol.OK) {
+            return;
+        }
+        String message = in.readUTF();
+        switch (status) {
+            case ShardProtocol.PATIENT_NOT_FOUND:
+                throw new PatientNotFoundException(requestedId);
+            case ShardProtocol.APPOINTMENT_NOT_FOUND:
+                throw new AppointmentNotFoundException(requestedId);
+            default:
+                throw new HospitalSystemException(message);
+        }
+    }
+
+    private HospitalSystemException unavailable(IOException e) {
+        disconnect();
+        return new ShardUnavailableException(host + ":" + port, e.getMessage());
+    }
+
+    private void disconnect() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            socket = null;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        disconnect();
+    }
+}
+
+class ShardRouter implements Closeable {
+    private final List<HospitalShard> shards;
+    private final IdGenerator patientIds;
+    private final IdGenerator appointmentIdScheme;
+    private final DoctorScheduleIndex doctorSchedule = new DoctorScheduleIndex();
+
+    ShardRouter(List<HospitalShard> shards, IdGenerator patientIds, String shardIdScheme) throws HospitalSystemException {
+        if (shards.isEmpty() || shards.size() > IdGenerator.MAX_NODE + 1) {
+            throw new IllegalArgumentException("Between 1 and " + (IdGenerator.MAX_NODE + 1) + " shards are required.");
+        }
+        for (int i = 0; i < shards.size(); i++) {
+            int node = shards.get(i).node();
+            if (node != i) {
+                throw new HospitalSystemException("Shard " + i + " reports node ID " + node + "; list shards in node ID order.");
+            }
+        }
+        this.shards = new ArrayList<>(shards);
+        this.patientIds = patientIds;
+        this.appointmentIdScheme = IdGenerator.create(shardIdScheme, 0);
+        int overlapping = 0;
+        for (HospitalShard shard : this.shards) {
+            for (Appointment appointment : shard.getAllAppointments()) {
+                if (!doctorSchedule.reserve(appointment.getDoctorName(), appointment.getStartMinute(),
+                                            AppointmentService.APPOINTMENT_MINUTES)) {
+                    overlapping++;
+                }
+            }
+        }
+        if (overlapping > 0) {
+            System.err.println("Warning: " + overlapping + " existing appointment(s) overlap another booking for the same doctor.");
+        }
+    }
+
+    static ShardRouter inProcess(int count, String shardIdScheme, IdGenerator patientIds) throws HospitalSystemException {
+        List<HospitalShard> shards = new ArrayList<>(count);
+        for (int node = 0; node < count; node++) {
+            shards.add(LocalShard.inMemory(node, shardIdScheme));
+        }
+        return new ShardRouter(shards, patientIds, shardIdScheme);
+    }
+
+    static ShardRouter connect(String addresses, String shardIdScheme, IdGenerator patientIds) throws HospitalSystemException {
+        List<HospitalShard> shards = new ArrayList<>();
+        for (String address : addresses.split(",")) {
+            shards.add(RemoteShard.parse(address));
+        }
+        return new ShardRouter(shards, patientIds, shardIdScheme);
+    }
+
+    int shardCount() {
+        return shards.size();
+    }
+
+    int shardOf(long patientId) {
+        return Math.floorMod(Long.hashCode(patientId * 0x9E3779B97F4A7C15L), shards.size());
+    }
+
+    private HospitalShard owner(String patientId) throws PatientNotFoundException {
+        long id = IdGenerator.parse(patientId, 'P');
+        if (id < 0) {
+            throw new PatientNotFoundException(patientId);
+        }
+        return shards.get(shardOf(id));
+    }
+
+    public Patient registerPatient(String name, int age, String gender, String contactNumber, boolean allowDuplicate)
+            throws HospitalSystemException {
+        if (name == null || name.trim().isEmpty() ||
+            gender == null || gender.trim().isEmpty() ||
+            contactNumber == null || contactNumber.trim().isEmpty() ||
+            age <= 0) {
+            throw new HospitalSystemException("Invalid input. Name, gender, contact cannot be empty, and age must be positive.");
+        }
+        String error = Patient.validationError(name, age, gender, contactNumber);
+        if (error != null) {
+            throw new HospitalSystemException("Invalid input: " + error + ".");
+        }
+        if (!allowDuplicate) {
+            List<Patient> likelyMatches = findLikelyDuplicates(name, age, contactNumber);
+            if (!likelyMatches.isEmpty()) {
+                throw new DuplicatePatientException(name, likelyMatches);
+            }
+        }
+        long id;
+        try {
+            id = patientIds.nextId();
+        } catch (IllegalStateException | UncheckedIOException e) {
+            throw new HospitalSystemException("Failed to create patient: " + e.getMessage());
+        }
+        return shards.get(shardOf(id)).registerPatientWithId("P" + id, name, age, gender, contactNumber);
+    }
+
+    public List<Patient> findLikelyDuplicates(String name, int age, String contactNumber) throws HospitalSystemException {
+        List<Patient> likelyMatches = new ArrayList<>();
+        for (HospitalShard shard : shards) {
+            likelyMatches.addAll(shard.findLikelyDuplicates(name, age, contactNumber));
+        }
+        return likelyMatches;
+    }
+
+    public Optional<Patient> findPatientById(String patientId) throws HospitalSystemException {
+        long id = IdGenerator.parse(patientId, 'P');
+        return id < 0 ? Optional.empty() : shards.get(shardOf(id)).findPatientById(patientId);
+    }
+
+    public Appointment bookAppointment(String patientId, String doctorName, LocalDate date, LocalTime time, String reason)
+            throws HospitalSystemException {
+        HospitalShard owner = owner(patientId);
+        if (doctorName == null || doctorName.trim().isEmpty() || reason == null || reason.trim().isEmpty()) {
+            throw new HospitalSystemException("Missing required appointment details.");
+        }
+        Appointment.requireFieldsFit(doctorName, reason);
+        long startMinute = Appointment.toStartMinute(date, time);
+        if (!doctorSchedule.reserve(doctorName, startMinute, AppointmentService.APPOINTMENT_MINUTES)) {
+            throw new AppointmentConflictException(doctorName, date.format(Appointment.DATE_FORMATTER), time.format(Appointment.TIME_FORMATTER));
+        }
+        try {
+            return owner.bookAppointment(patientId, doctorName, date, time, reason);
+        } catch (ShardUnavailableException e) {
+            throw e;
+        } catch (HospitalSystemException | RuntimeException e) {
+            doctorSchedule.release(doctorName, startMinute, AppointmentService.APPOINTMENT_MINUTES);
+            throw e;
+        }
+    }
+
+    public List<Appointment> getAppointmentsByPatientId(String patientId) throws HospitalSystemException {
+        return owner(patientId).getAppointmentsByPatientId(patientId);
+    }
+
+    public boolean cancelAppointment(String appointmentId) throws HospitalSystemException {
+        long id = IdGenerator.parse(appointmentId, 'A');
+        int node = id < 0 ? -1 : appointmentIdScheme.nodeOf(id);
+        if (node < 0 || node >= shards.size()) {
+            throw new AppointmentNotFoundException(appointmentId);
+        }
+        Appointment cancelled = shards.get(node).cancelAppointment(appointmentId);
+        doctorSchedule.release(cancelled.getDoctorName(), cancelled.getStartMinute(), AppointmentService.APPOINTMENT_MINUTES);
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (HospitalShard shard : shards) {
+            shard.close();
+        }
+    }
+}
+
+class Json {
+    private static final int MAX_DEPTH = 32;
+
+    private final String text;
+    private int position;
+    private int depth;
+
+    private Json(String text) {
+        this.text = text;
+    }
+
+    static Map<String, Object> parseObject(String text) throws HospitalSystemException {
+        Json parser = new Json(text);
+        parser.skipWhitespace();
+        Map<String, Object> object = parser.object();
+        parser.skipWhitespace();
+        if (parser.position != text.length()) {
+            throw parser.error("unexpected trailing content");
+        }
+        return object;
+    }
+
+    private Map<String, Object> object() throws HospitalSystemException {
+        expect('{');
+        if (++depth > MAX_DEPTH) {
+            throw error("objects nested more than " + MAX_DEPTH + " deep");
+        }
+        Map<String, Object> object = new LinkedHashMap<>();
+        skipWhitespace();
+        if (peek() == '}') {
+            position++;
+            depth--;
+            return object;
+        }
+        while (true) {
+            skipWhitespace();
+            String key = string();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            object.put(key, value());
+            skipWhitespace();
+            if (peek() == ',') {
+                position++;
+            } else {
+                expect('}');
+                depth--;
+                return object;
+            }
+        }
+    }
+
+    private Object value() throws HospitalSystemException {
+        char c = peek();
+        if (c == '"') {
+            return string();
+        }
+        if (c == '{') {
+            return object();
+        }
+        if (c == '-' || (c >= '0' && c <= '9')) {
+            int start = position;
+            while (position < text.length() && "+-.eE0123456789".indexOf(text.charAt(position)) >= 0) {
+                position++;
+            }
+            try {
+                return Double.parseDouble(text.substring(start, position));
+            } catch (NumberFormatException e) {
+                throw error("malformed number");
+            }
+        }
+        for (String literal : new String[] {"true", "false", "null"}) {
+            if (text.startsWith(literal, position)) {
+                position += literal.length();
+                return "null".equals(literal) ? null : Boolean.valueOf(literal);
+            }
+        }
+        throw error("unexpected value");
+    }
+
+    private String string() throws HospitalSystemException {
+        expect('"');
+        StringBuilder value = new StringBuilder();
+        while (true) {
+            if (position >= text.length()) {
+                throw error("unterminated string");
+            }
+            char c = text.charAt(position++);
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            if (position >= text.length()) {
+                throw error("unterminated escape");
+            }
+            char escaped = text.charAt(position++);
+            switch (escaped) {
+                case 'b': value.append('\b'); break;
+                case 'f': value.append('\f'); break;
+                case 'n': value.append('\n'); break;
+                case 'r': value.append('\r'); break;
+                case 't': value.append('\t'); break;
+                case 'u':
+                    if (position + 4 > text.length()) {
+                        throw error("short unicode escape");
+                    }
+                    int codeUnit = 0;
+                    for (int i = 0; i < 4; i++) {
+                        char hex = text.charAt(position++);
+                        int digit = hex < 128 ? Character.digit(hex, 16) : -1;
+                        if (digit < 0) {
+                            throw error("malformed unicode escape");
+                        }
+                        codeUnit = codeUnit * 16 + digit;
+                    }
+                    value.append((char) codeUnit);
+                    break;
+                default:
+                    value.append(escaped);
+            }
+        }
+    }
+
+    private char peek() throws HospitalSystemException {
+        if (position >= text.length()) {
+            throw error("unexpected end of input");
+        }
+        return text.charAt(position);
+    }
+
+    private void expect(char c) throws HospitalSystemException {
+        if (peek() != c) {
+            throw error("expected '" + c + "'");
+        }
+        position++;
+    }
+
+    private void skipWhitespace() {
+        while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+            position++;
+        }
+    }
+
+    private HospitalSystemException error(String problem) {
+        return new HospitalSystemException("Malformed JSON at character " + position + ": " + problem + ".");
+    }
+
+    static StringBuilder quote(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        return out.append('"');
+    }
+
+    static StringBuilder patient(StringBuilder out, Patient patient) {
+        out.append("{\"id\":");
+        quote(out, patient.getId()).append(",\"name\":");
+        quote(out, patient.getName()).append(",\"age\":").append(patient.getAge()).append(",\"gender\":");
+        quote(out, patient.getGender()).append(",\"contact\":");
+        return quote(out, patient.getContactNumber()).append('}');
+    }
+
+    static StringBuilder appointment(StringBuilder out, Appointment appointment) {
+        out.append("{\"id\":");
+        quote(out, appointment.getAppointmentId()).append(",\"patientId\":");
+        quote(out, appointment.getPatientId()).append(",\"patientName\":");
+        quote(out, appointment.getPatientName()).append(",\"doctor\":");
+        quote(out, appointment.getDoctorName()).append(",\"start\":");
+        quote(out, appointment.getDate() + "T" + appointment.getTime()).append(",\"reason\":");
+        return quote(out, appointment.getReason()).append('}');
+    }
+
+    static StringBuilder patients(StringBuilder out, List<Patient> patients) {
+        out.append('[');
+        for (int i = 0; i < patients.size(); i++) {
+            patient(i == 0 ? out : out.append(','), patients.get(i));
+        }
+        return out.append(']');
+    }
+
+    static StringBuilder appointments(StringBuilder out, List<Appointment> appointments) {
+        out.append('[');
+        for (int i = 0; i < appointments.size(); i++) {
+            appointment(i == 0 ? out : out.append(','), appointments.get(i));
+        }
+        return out.append(']');
+    }
+}
+
+class HttpApiServer implements Closeable {
+    private static final int BACKLOG = 4096;
+    private static final int FALLBACK_THREADS = 256;
+    private static final int MAX_BODY_BYTES = 64 * 1024;
+    private static final int DEFAULT_PAGE_SIZE = 20;
+    private static final int MAX_IDLE_CONNECTIONS = 10_000;
+    private static final String ADMIN_ROLE = "Admin";
+
+    static {
+        if (System.getProperty("sun.net.httpserver.maxIdleConnections") == null) {
+            System.setProperty("sun.net.httpserver.maxIdleConnections", String.valueOf(MAX_IDLE_CONNECTIONS));
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+    private final PatientService patientService;
+    private final AppointmentService appointmentService;
+    private final AuthService authService;
+
+    HttpApiServer(String bindAddress, int port, PatientService patientService, AppointmentService appointmentService,
+                  AuthService authService) throws IOException {
+        this.patientService = patientService;
+        this.appointmentService = appointmentService;
+        this.authService = authService;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getByName(bindAddress), port), BACKLOG);
+        ExecutorService virtual = virtualThreadExecutor();
+        this.virtualThreads = virtual != null;
+        this.executor = virtual != null ? virtual : Executors.newFixedThreadPool(FALLBACK_THREADS, r -> {
+            Thread thread = new Thread(r, "http-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/patients", exchange -> handle(exchange, this::patients));
+        server.createContext("/appointments", exchange -> handle(exchange, this::appointments));
+    }
+
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    void start() {
+        server.start();
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    String describeThreads() {
+        return virtualThreads ? "one virtual thread per request" : FALLBACK_THREADS + " worker threads (virtual threads need JDK 21)";
+    }
+
+    private interface Route {
+        Response serve(HttpExchange exchange, String[] path, Map<String, String> query, String role)
+                throws HospitalSystemException, IOException;
+    }
+
+    private static class Response {
+        final int status;
+        final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private void handle(HttpExchange exchange, Route route) throws IOException {
+        Response response;
+        try {
+            String role = authenticate(exchange);
+            if (role == null) {
+                exchange.getResponseHeaders().set("WWW-Authenticate", "Basic realm=\"hospital\", charset=\"UTF-8\"");
+                response = error(401, "Log in with HTTP Basic authentication.");
+            } else {
+                String[] path = exchange.getRequestURI().getPath().replaceAll("^/+|/+$", "").split("/+");
+                response = route.serve(exchange, path, query(exchange.getRequestURI().getRawQuery()), role);
+            }
+        } catch (PatientNotFoundException | AppointmentNotFoundException e) {
+            response = error(404, e.getMessage());
+        } catch (DuplicatePatientException e) {
+            response = new Response(409, Json.patients(errorBody(e.getMessage()).append(",\"likelyMatches\":"), e.getLikelyMatches())
+                                             .append('}').toString());
+        } catch (AppointmentConflictException e) {
+            response = error(409, e.getMessage());
+        } catch (ReadOnlyReplicaException e) {
+            response = error(503, e.getMessage());
+        } catch (HospitalSystemException e) {
+            response = error(400, e.getMessage());
+        } catch (RuntimeException e) {
+            response = error(500, "Internal error: " + e.getMessage());
+        }
+        byte[] body = response.body == null ? new byte[0] : response.body.getBytes(StandardCharsets.UTF_8);
+        if (response.body != null) {
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        }
+        exchange.sendResponseHeaders(response.status, body.length == 0 ? -1 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private String authenticate(HttpExchange exchange) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.regionMatches(true, 0, "Basic ", 0, 6)) {
+            return null;
+        }
+        String credentials;
+        try {
+            credentials = new String(Base64.getDecoder().decode(authorization.substring(6).trim()), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        int colon = credentials.indexOf(':');
+        return colon < 0 ? null : authService.login(credentials.substring(0, colon), credentials.substring(colon + 1));
+    }
+
+    private Response patients(HttpExchange exchange, String[] path, Map<String, String> query, String role)
+            throws HospitalSystemException, IOException {
+        String method = exchange.getRequestMethod();
+        if (path.length == 1 && "GET".equals(method)) {
+            if (query.containsKey("name")) {
+                return ok(Json.patients(new StringBuilder(), patientService.searchPatientsByName(query.get("name"), pageSize(query))));
+            }
+            if (query.containsKey("contact")) {
+                return ok(Json.patients(new StringBuilder(), patientService.findPatientsByContactNumber(query.get("contact"))));
+            }
+            if (!ADMIN_ROLE.equals(role)) {
+                return adminRequired();
+            }
+            Page<Patient> page = patientService.listPatients(query.get("cursor"), pageSize(query));
+            return ok(page(Json.patients(new StringBuilder("{\"items\":"), page.getItems()), page.getNextCursor()));
+        }
+        if (path.length == 1 && "POST".equals(method)) {
+            Map<String, Object> body = body(exchange);
+            Patient patient = patientService.registerPatient(text(body, "name"), integer(body, "age"), text(body, "gender"),
+                                                             text(body, "contact"), Boolean.TRUE.equals(body.get("allowDuplicate")));
+            return new Response(201, Json.patient(new StringBuilder(), patient).toString());
+        }
+        if (path.length == 2 && "GET".equals(method)) {
+            Patient patient = patientService.findPatientById(path[1]).orElseThrow(() -> new PatientNotFoundException(path[1]));
+            return ok(Json.patient(new StringBuilder(), patient));
+        }
+        if (path.length == 3 && "appointments".equals(path[2]) && "GET".equals(method)) {
+            return ok(Json.appointments(new StringBuilder(), appointmentService.getAppointmentsByPatientId(path[1])));
+        }
+        return unsupported(exchange, path.length <= 2 || "appointments".equals(path[2]));
+    }
+
+    private Response appointments(HttpExchange exchange, String[] path, Map<String, String> query, String role)
+            throws HospitalSystemException, IOException {
+        String method = exchange.getRequestMethod();
+        if (path.length == 1 && "GET".equals(method)) {
+            if (!ADMIN_ROLE.equals(role)) {
+                return adminRequired();
+            }
+            Page<Appointment> page = appointmentService.listAppointments(query.get("cursor"), pageSize(query));
+            return ok(page(Json.appointments(new StringBuilder("{\"items\":"), page.getItems()), page.getNextCursor()));
+        }
+        if (path.length == 1 && "POST".equals(method)) {
+            Map<String, Object> body = body(exchange);
+            LocalDateTime start;
+            try {
+                start = LocalDateTime.parse(text(body, "start"));
+            } catch (DateTimeParseException e) {
+                throw new HospitalSystemException("Field 'start' must look like 2030-01-31T09:15.");
+            }
+            Appointment appointment = appointmentService.bookAppointment(text(body, "patientId"), text(body, "doctor"),
+                                                                         start.toLocalDate(), start.toLocalTime(), text(body, "reason"));
+            return new Response(201, Json.appointment(new StringBuilder(), appointment).toString());
+        }
+        if (path.length == 2 && "DELETE".equals(method)) {
+            appointmentService.cancelAppointment(path[1]);
+            return new Response(204, null);
+        }
+        return unsupported(exchange, path.length <= 2);
+    }
+
+    private static Response ok(StringBuilder body) {
+        return new Response(200, body.toString());
+    }
+
+    private static StringBuilder page(StringBuilder items, String nextCursor) {
+        items.append(",\"nextCursor\":");
+        return (nextCursor == null ? items.append("null") : Json.quote(items, nextCursor)).append('}');
+    }
+
+    private static StringBuilder errorBody(String message) {
+        return Json.quote(new StringBuilder("{\"error\":"), message);
+    }
+
+    private static Response error(int status, String message) {
+        return new Response(status, errorBody(message).append('}').toString());
+    }
+
+    private static Response adminRequired() {
+        return error(403, "Access Denied. Admin role required.");
+    }
+
+    private static Response unsupported(HttpExchange exchange, boolean knownPath) {
+        return knownPath ? error(405, "Method " + exchange.getRequestMethod() + " is not supported here.")
+                         : error(404, "No such resource " + exchange.getRequestURI().getPath() + ".");
+    }
+
+    private static Map<String, String> query(String rawQuery) {
+        Map<String, String> parameters = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return parameters;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            String key = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            parameters.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return parameters;
+    }
+
+    private static int pageSize(Map<String, String> query) throws HospitalSystemException {
+        String limit = query.get("limit");
+        if (limit == null) {
+            return DEFAULT_PAGE_SIZE;
+        }
+        try {
+            return Integer.parseInt(limit);
+        } catch (NumberFormatException e) {
+            throw new HospitalSystemException("Query parameter 'limit' must be a number.");
+        }
+    }
+
+    private static Map<String, Object> body(HttpExchange exchange) throws HospitalSystemException, IOException {
+        byte[] bytes;
+        try (InputStream in = exchange.getRequestBody()) {
+            bytes = in.readNBytes(MAX_BODY_BYTES + 1);
+        }
+        if (bytes.length > MAX_BODY_BYTES) {
+            throw new HospitalSystemException("Request body is larger than " + MAX_BODY_BYTES + " bytes.");
+        }
+        return Json.parseObject(new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    private static String text(Map<String, Object> body, String field) throws HospitalSystemException {
+        Object value = body.get(field);
+        if (!(value instanceof String)) {
+            throw new HospitalSystemException("Field '" + field + "' must be a string.");
+        }
+        return (String) value;
+    }
+
+    private static int integer(Map<String, Object> body, String field) throws HospitalSystemException {
+        Object value = body.get(field);
+        if (!(value instanceof Double) || (Double) value != Math.rint((Double) value) || Math.abs((Double) value) > Integer.MAX_VALUE) {
+            throw new HospitalSystemException("Field '" + field + "' must be a whole number.");
+        }
+        return ((Double) value).intValue();
+    }
+
+    @Override
+    public void close() {
+        server.stop(1);
+        executor.shutdown();
+    }
+}
+
+class BinaryProtocol {
+    static final byte FIND_PATIENT = 1;
+    static final byte BOOK_APPOINTMENT = 2;
+    static final byte CANCEL_APPOINTMENT = 3;
+
+    static final byte OK = 0;
+    static final byte FAILED = 1;
+    static final byte PATIENT_NOT_FOUND = 2;
+    static final byte APPOINTMENT_NOT_FOUND = 3;
+    static final byte CONFLICT = 4;
+    static final byte READ_ONLY = 5;
+
+    static final int MAX_FRAME_BYTES = 64 * 1024;
+    static final int MAX_STRING_BYTES = 0xFFFF;
+    static final int MAX_MESSAGE_BYTES = 1024;
+
+    static void putFindPatient(ByteBuffer out, int requestId, long patientNumber) {
+        out.putInt(13).putInt(requestId).put(FIND_PATIENT).putLong(patientNumber);
+    }
 
-    public Patient(String id, String name, int age, String gender, String contactNumber) {
-        if (name == null || name.trim().isEmpty() || age <= 0 || gender == null || gender.trim().isEmpty() || contactNumber == null || contactNumber.trim().isEmpty()) {
-            throw new IllegalArgumentException("Invalid patient data provided.");
+    static void putBookAppointment(ByteBuffer out, int requestId, long patientNumber, long startMinute, String doctorName, String reason) {
+        int start = out.position();
+        out.putInt(0).putInt(requestId).put(BOOK_APPOINTMENT).putLong(patientNumber).putLong(startMinute);
+        putString(out, doctorName);
+        putString(out, reason);
+        endFrame(out, start);
+    }
+
+    static void putCancelAppointment(ByteBuffer out, int requestId, long appointmentNumber) {
+        out.putInt(13).putInt(requestId).put(CANCEL_APPOINTMENT).putLong(appointmentNumber);
+    }
+
+    static int beginResponse(ByteBuffer out, int requestId, byte status) {
+        int start = out.position();
+        out.putInt(0).putInt(requestId).put(status);
+        return start;
+    }
+
+    static void endFrame(ByteBuffer out, int start) {
+        out.putInt(start, out.position() - start - 4);
+    }
+
+    static void putString(ByteBuffer out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING_BYTES) {
+            throw new IllegalArgumentException("String of " + bytes.length + " bytes does not fit in a frame field.");
         }
-        this.id = id;
-        this.name = name;
-        this.age = age;
-        this.gender = gender;
-        this.contactNumber = contactNumber;
+        out.putShort((short) bytes.length).put(bytes);
     }
 
-    public String getId() { return id; }
-    public String getName() { return name; }
-    public int getAge() { return age; }
-    public String getGender() { return gender; }
-    public String getContactNumber() { return contactNumber; }
+    static boolean fits(String value) {
+        return value.length() <= MAX_STRING_BYTES / 3 || value.getBytes(StandardCharsets.UTF_8).length <= MAX_STRING_BYTES;
+    }
 
-    @Override
-    public String toString() {
-        return String.format("Patient [ID=%-5s | Name=%-20s | Age=%-3d | Gender=%-10s | Contact=%-15s]",
-                             id, name, age, gender, contactNumber);
+    static String truncate(String value, int maxBytes) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= maxBytes) {
+            return value;
+        }
+        int end = maxBytes;
+        while (end > 0 && (bytes[end] & 0xC0) == 0x80) {
+            end--;
+        }
+        return new String(bytes, 0, end, StandardCharsets.UTF_8);
     }
 
-    public String toFormattedString() {
-        return String.format("| %-5s | %-20s | %-5d | %-10s | %-15s |",
-                             id, name, age, gender, contactNumber);
+    static String getString(ByteBuffer in) {
+        byte[] bytes = new byte[Short.toUnsignedInt(in.getShort())];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static int maxStringBytes(String value) {
+        return 2 + 3 * value.length();
     }
 }
 
-class Appointment {
-    String appointmentId;
-    String patientId;
-    String patientName;
-    String doctorName;
-    String date;
-    String time;
-    String reason;
+class BinaryProtocolServer implements Closeable {
+    private static final int BACKLOG = 1024;
+    private static final int CHANGE_THREADS = 64;
+    private static final int MAX_PENDING_CHANGES = 1024;
+    private static final int MAX_BUFFERED_RESPONSE_BYTES = 1 << 20;
+    private static final long ACCEPT_RETRY_MILLIS = 100;
 
-    private static final AtomicInteger count = new AtomicInteger(0);
-    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ISO_LOCAL_DATE;
-    private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormatter.ofPattern("HH:mm");
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final SelectionKey acceptKey;
+    private final PatientService patientService;
+    private final AppointmentService appointmentService;
+    private final ExecutorService changes = Executors.newFixedThreadPool(CHANGE_THREADS, r -> {
+        Thread thread = new Thread(r, "binary-change");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Queue<Connection> completed = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+    private long acceptResumesAt;
 
-    public Appointment(String patientId, String patientName, String doctorName, String date, String time, String reason) throws HospitalSystemException {
-        if (patientId == null || patientId.trim().isEmpty() ||
-            patientName == null || patientName.trim().isEmpty() ||
-            doctorName == null || doctorName.trim().isEmpty() ||
-            reason == null || reason.trim().isEmpty()) {
-            throw new HospitalSystemException("Missing required appointment details.");
-        }
+    BinaryProtocolServer(String bindAddress, int port, PatientService patientService, AppointmentService appointmentService)
+            throws IOException {
+        this.patientService = patientService;
+        this.appointmentService = appointmentService;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getByName(bindAddress), port), BACKLOG);
+        serverChannel.configureBlocking(false);
+        this.acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    void serve() throws IOException {
         try {
-            LocalDate.parse(date, DATE_FORMATTER);
-            LocalTime.parse(time, TIME_FORMATTER);
-        } catch (DateTimeParseException e) {
-            throw new HospitalSystemException("Invalid date or time format. Use YYYY-MM-DD and HH:MM. " + e.getMessage());
+            while (!closed) {
+                selector.select(acceptResumesAt == 0 ? 0 : ACCEPT_RETRY_MILLIS);
+                if (acceptResumesAt != 0 && System.currentTimeMillis() >= acceptResumesAt) {
+                    acceptResumesAt = 0;
+                    acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+                }
+                Connection finished;
+                while ((finished = completed.poll()) != null) {
+                    finished.deliver();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.resume();
+                        }
+                    } catch (IOException e) {
+                        connection.close();
+                    } catch (RuntimeException e) {
+                        System.err.println("Closing a binary connection after an unexpected error: " + e);
+                        connection.close();
+                    }
+                }
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
         }
+    }
 
-        this.appointmentId = "A" + count.incrementAndGet();
-        this.patientId = patientId;
-        this.patientName = patientName;
-        this.doctorName = doctorName;
-        this.date = date;
-        this.time = time;
-        this.reason = reason;
+    private void accept() {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                System.err.println("Could not accept a connection, retrying in " + ACCEPT_RETRY_MILLIS + " ms: " + e.getMessage());
+                acceptKey.interestOps(0);
+                acceptResumesAt = System.currentTimeMillis() + ACCEPT_RETRY_MILLIS;
+                return;
+            }
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new Connection(channel, key));
+            } catch (IOException e) {
+                System.err.println("Could not set up a connection: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
     }
 
-    public String getAppointmentId() { return appointmentId; }
-    public String getPatientId() { return patientId; }
-    public String getPatientName() { return patientName; }
-    public String getDoctorName() { return doctorName; }
-    public String getDate() { return date; }
-    public String getTime() { return time; }
-    public String getReason() { return reason; }
+    private interface Change {
+        long apply() throws HospitalSystemException;
+    }
 
-    @Override
-    public String toString() {
-        return String.format("Appointment [ID=%-5s | PatientID=%-5s | Name=%-15s | Doctor=%-15s | Date=%-10s | Time=%-5s | Reason=%-20s]",
-               appointmentId, patientId, patientName, doctorName, date, time, reason);
+    private final class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ByteBuffer requests = ByteBuffer.allocate(4 + BinaryProtocol.MAX_FRAME_BYTES);
+        private ByteBuffer responses = ByteBuffer.allocate(64 * 1024);
+        private final Queue<byte[]> finishedChanges = new ConcurrentLinkedQueue<>();
+        private int pendingChanges;
+        private boolean endOfInput;
+        private boolean open = true;
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void read() throws IOException {
+            if (channel.read(requests) < 0) {
+                endOfInput = true;
+            }
+            resume();
+        }
+
+        void deliver() {
+            byte[] response;
+            while ((response = finishedChanges.poll()) != null) {
+                reserve(response.length);
+                responses.put(response);
+                pendingChanges--;
+            }
+            if (!open) {
+                return;
+            }
+            try {
+                resume();
+            } catch (IOException e) {
+                close();
+            } catch (RuntimeException e) {
+                System.err.println("Closing a binary connection after an unexpected error: " + e);
+                close();
+            }
+        }
+
+        void resume() throws IOException {
+            process();
+            flush();
+        }
+
+        private void process() throws IOException {
+            requests.flip();
+            try {
+                while (pendingChanges < MAX_PENDING_CHANGES && responses.position() < MAX_BUFFERED_RESPONSE_BYTES
+                       && requests.remaining() >= 4) {
+                    int length = requests.getInt(requests.position());
+                    if (length < 5 || length > BinaryProtocol.MAX_FRAME_BYTES) {
+                        throw new IOException("Request frame of " + length + " bytes is out of range.");
+                    }
+                    if (requests.remaining() < 4 + length) {
+                        break;
+                    }
+                    int frameEnd = requests.position() + 4 + length;
+                    int limit = requests.limit();
+                    requests.position(requests.position() + 4).limit(frameEnd);
+                    try {
+                        handle(requests.getInt(), requests.get());
+                    } catch (BufferUnderflowException e) {
+                        throw new IOException("Request frame is shorter than its fields.");
+                    }
+                    if (requests.hasRemaining()) {
+                        throw new IOException("Request frame is longer than its fields.");
+                    }
+                    requests.limit(limit).position(frameEnd);
+                }
+            } finally {
+                requests.compact();
+            }
+        }
+
+        private void handle(int requestId, byte request) throws IOException {
+            switch (request) {
+                case BinaryProtocol.FIND_PATIENT:
+                    Optional<Patient> patient = patientService.findPatientById(requests.getLong());
+                    if (patient.isPresent()) {
+                        respond(requestId, patient.get());
+                    } else {
+                        reserve(9);
+                        BinaryProtocol.endFrame(responses, BinaryProtocol.beginResponse(responses, requestId, BinaryProtocol.PATIENT_NOT_FOUND));
+                    }
+                    break;
+                case BinaryProtocol.BOOK_APPOINTMENT:
+                    String patientId = "P" + requests.getLong();
+                    long startMinute = requests.getLong();
+                    String doctorName = BinaryProtocol.getString(requests);
+                    String reason = BinaryProtocol.getString(requests);
+                    submit(requestId, () -> {
+                        LocalDateTime start;
+                        try {
+                            start = Appointment.toDateTime(startMinute);
+                        } catch (DateTimeException e) {
+                            throw new HospitalSystemException("Invalid appointment start " + startMinute + ".");
+                        }
+                        Appointment booked = appointmentService.bookAppointment(patientId, doctorName, start.toLocalDate(),
+                                                                                start.toLocalTime(), reason);
+                        return IdGenerator.parse(booked.getAppointmentId(), 'A');
+                    });
+                    break;
+                case BinaryProtocol.CANCEL_APPOINTMENT:
+                    long appointmentNumber = requests.getLong();
+                    submit(requestId, () -> {
+                        appointmentService.cancelAppointment("A" + appointmentNumber);
+                        return appointmentNumber;
+                    });
+                    break;
+                default:
+                    throw new IOException("Unknown request type " + request + ".");
+            }
+        }
+
+        private void respond(int requestId, Patient patient) {
+            if (!BinaryProtocol.fits(patient.getName()) || !BinaryProtocol.fits(patient.getGender())
+                || !BinaryProtocol.fits(patient.getContactNumber())) {
+                byte[] response = failure(requestId, BinaryProtocol.FAILED,
+                                          "Patient " + patient.getId() + " has a field too long for a binary response.");
+                reserve(response.length);
+                responses.put(response);
+                return;
+            }
+            reserve(17 + BinaryProtocol.maxStringBytes(patient.getName()) + BinaryProtocol.maxStringBytes(patient.getGender())
+                    + BinaryProtocol.maxStringBytes(patient.getContactNumber()));
+            int start = BinaryProtocol.beginResponse(responses, requestId, BinaryProtocol.OK);
+            BinaryProtocol.putString(responses, patient.getName());
+            responses.putInt(patient.getAge());
+            BinaryProtocol.putString(responses, patient.getGender());
+            BinaryProtocol.putString(responses, patient.getContactNumber());
+            BinaryProtocol.endFrame(responses, start);
+        }
+
+        private void submit(int requestId, Change change) {
+            pendingChanges++;
+            changes.execute(() -> {
+                finishedChanges.add(apply(requestId, change));
+                completed.add(this);
+                selector.wakeup();
+            });
+        }
+
+        private byte[] apply(int requestId, Change change) {
+            byte status;
+            String message;
+            try {
+                long number = change.apply();
+                ByteBuffer response = ByteBuffer.allocate(17);
+                int start = BinaryProtocol.beginResponse(response, requestId, BinaryProtocol.OK);
+                response.putLong(number);
+                BinaryProtocol.endFrame(response, start);
+                return response.array();
+            } catch (PatientNotFoundException e) {
+                status = BinaryProtocol.PATIENT_NOT_FOUND;
+                message = e.getMessage();
+            } catch (AppointmentNotFoundException e) {
+                status = BinaryProtocol.APPOINTMENT_NOT_FOUND;
+                message = e.getMessage();
+            } catch (AppointmentConflictException e) {
+                status = BinaryProtocol.CONFLICT;
+                message = e.getMessage();
+            } catch (ReadOnlyReplicaException e) {
+                status = BinaryProtocol.READ_ONLY;
+                message = e.getMessage();
+            } catch (HospitalSystemException | RuntimeException e) {
+                status = BinaryProtocol.FAILED;
+                message = e.getMessage() == null ? e.toString() : e.getMessage();
+            }
+            return failure(requestId, status, message);
+        }
+
+        private byte[] failure(int requestId, byte status, String message) {
+            message = BinaryProtocol.truncate(message, BinaryProtocol.MAX_MESSAGE_BYTES);
+            ByteBuffer response = ByteBuffer.allocate(11 + BinaryProtocol.maxStringBytes(message));
+            int start = BinaryProtocol.beginResponse(response, requestId, status);
+            BinaryProtocol.putString(response, message);
+            BinaryProtocol.endFrame(response, start);
+            return Arrays.copyOf(response.array(), response.position());
+        }
+
+        private void reserve(int bytes) {
+            if (responses.remaining() < bytes) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(responses.capacity() * 2, responses.position() + bytes));
+                responses.flip();
+                grown.put(responses);
+                responses = grown;
+            }
+        }
+
+        private void flush() throws IOException {
+            responses.flip();
+            try {
+                channel.write(responses);
+            } finally {
+                responses.compact();
+            }
+            if (endOfInput && pendingChanges == 0 && responses.position() == 0) {
+                close();
+                return;
+            }
+            int interest = responses.position() > 0 ? SelectionKey.OP_WRITE : 0;
+            if (!endOfInput && pendingChanges < MAX_PENDING_CHANGES && responses.position() < MAX_BUFFERED_RESPONSE_BYTES) {
+                interest |= SelectionKey.OP_READ;
+            }
+            key.interestOps(interest);
+        }
+
+        void close() {
+            open = false;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
     }
 
-    public String toFormattedString() {
-        return String.format("| %-7s | %-10s | %-20s | %-15s | %-10s | %-8s | %-25s |",
-                             appointmentId, patientId, patientName, doctorName, date, time, reason);
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        changes.shutdown();
+        try {
+            changes.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 }
 
-class AuthService {
-    private final Map<String, String> users = new HashMap<>();
-    private final Map<String, String> roles = new HashMap<>();
+class TableRenderer {
+    static final int[] PATIENT_COLUMNS = {5, 20, 5, 10, 15};
+    static final int[] APPOINTMENT_COLUMNS = {7, 10, 20, 15, 10, 8, 25};
+    private static final int BUFFER_CHARS = 64 * 1024;
+    private static final char[] LINE_SEPARATOR = System.lineSeparator().toCharArray();
 
-    public AuthService() {
-        initializeUsers();
+    private final OutputStream out;
+    private final int[] widths;
+    private final char[] rule;
+    private final char[] dashes;
+    private final char[] buffer = new char[BUFFER_CHARS];
+    private final CharBuffer pending = CharBuffer.wrap(buffer);
+    private final ByteBuffer encoded = ByteBuffer.allocate(BUFFER_CHARS * 4);
+    private final CharsetEncoder encoder = Charset.defaultCharset().newEncoder()
+                                                  .onMalformedInput(CodingErrorAction.REPLACE)
+                                                  .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private int length;
+    private int column;
+
+    public TableRenderer(OutputStream out, int... widths) {
+        this.out = out;
+        this.widths = widths.clone();
+        StringBuilder ruleLine = new StringBuilder("+");
+        for (int width : widths) {
+            for (int i = 0; i < width + 2; i++) {
+                ruleLine.append('-');
+            }
+            ruleLine.append('+');
+        }
+        this.rule = ruleLine.toString().toCharArray();
+        this.dashes = ruleLine.toString().replace('+', '-').toCharArray();
     }
 
-    private void initializeUsers() {
-        users.put("admin", "admin123");
-        roles.put("admin", "Admin");
-        users.put("reception", "pass123");
-        roles.put("reception", "Receptionist");
+    public static TableRenderer forPatients(OutputStream out) {
+        return new TableRenderer(out, PATIENT_COLUMNS);
     }
 
-    public String login(String username, String password) {
-        if (users.containsKey(username) && users.get(username).equals(password)) {
-            return roles.get(username);
+    public static TableRenderer forAppointments(OutputStream out) {
+        return new TableRenderer(out, APPOINTMENT_COLUMNS);
+    }
+
+    public TableRenderer rule() throws IOException {
+        return line(rule);
+    }
+
+    public TableRenderer dashes() throws IOException {
+        return line(dashes);
+    }
+
+    public TableRenderer header(String... titles) throws IOException {
+        for (String title : titles) {
+            cell(title);
         }
-        return null;
+        return endRow();
     }
 
-    public Map<String, String> getAllUserRoles() {
-        return Collections.unmodifiableMap(roles);
+    public TableRenderer row(Patient patient) throws IOException {
+        return cell(patient.getId()).cell(patient.getName()).cell(patient.getAge())
+              .cell(patient.getGender()).cell(patient.getContactNumber()).endRow();
     }
-}
 
-class PatientService {
-    private final List<Patient> patients = new ArrayList<>();
-    private final AtomicInteger patientIdCounter = new AtomicInteger(0);
+    public TableRenderer row(Appointment appointment) throws IOException {
+        return cell(appointment.getAppointmentId()).cell(appointment.getPatientId()).cell(appointment.getPatientName())
+              .cell(appointment.getDoctorName()).dateCell(appointment.getStartMinute()).timeCell(appointment.getStartMinute())
+              .cell(appointment.getReason()).endRow();
+    }
 
-    public PatientService() {
-        try {
-            registerPatient("John Doe", 30, "Male", "555-1234");
-            registerPatient("Jane Smith", 25, "Female", "555-5678");
-        } catch (HospitalSystemException e) {
-            System.err.println("Error initializing sample patients: " + e.getMessage());
+    public TableRenderer cell(CharSequence value) throws IOException {
+        int width = startCell(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            buffer[length++] = value.charAt(i);
         }
+        return endCell(width - value.length());
     }
 
-    public Patient registerPatient(String name, int age, String gender, String contactNumber) throws HospitalSystemException {
-        if (name == null || name.trim().isEmpty() ||
-            gender == null || gender.trim().isEmpty() ||
-            contactNumber == null || contactNumber.trim().isEmpty() ||
-            age <= 0) {
-            throw new HospitalSystemException("Invalid input. Name, gender, contact cannot be empty, and age must be positive.");
+    public TableRenderer cell(int value) throws IOException {
+        int digits = value < 0 ? stringSize(-(long) value) + 1 : stringSize(value);
+        int width = startCell(digits);
+        long remaining = value;
+        if (remaining < 0) {
+            buffer[length] = '-';
+            remaining = -remaining;
+        }
+        for (int i = length + digits - 1; remaining > 0 || i == length + digits - 1; i--) {
+            buffer[i] = (char) ('0' + remaining % 10);
+            remaining /= 10;
         }
+        length += digits;
+        return endCell(width - digits);
+    }
 
-        String id = "P" + patientIdCounter.incrementAndGet();
-        Patient newPatient;
-        try {
-            newPatient = new Patient(id, name, age, gender, contactNumber);
-        } catch (IllegalArgumentException e) {
-            throw new HospitalSystemException("Failed to create patient: " + e.getMessage());
+    public TableRenderer dateCell(long startMinute) throws IOException {
+        long z = Math.floorDiv(startMinute, Appointment.MINUTES_PER_DAY) + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long monthIndex = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * monthIndex + 2) / 5 + 1);
+        int month = (int) (monthIndex < 10 ? monthIndex + 3 : monthIndex - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 0 || year > 9999) {
+            return cell(Appointment.toDateTime(startMinute).toLocalDate().toString());
         }
-        patients.add(newPatient);
-        System.out.println("Patient registered successfully! Assigned ID: " + id);
-        return newPatient;
+        int width = startCell(10);
+        putDigits((int) year, 4);
+        buffer[length++] = '-';
+        putDigits(month, 2);
+        buffer[length++] = '-';
+        putDigits(day, 2);
+        return endCell(width - 10);
     }
 
-    public Optional<Patient> findPatientById(String patientId) {
-        return patients.stream()
-                       .filter(p -> p.getId().equalsIgnoreCase(patientId))
-                       .findFirst();
+    public TableRenderer timeCell(long startMinute) throws IOException {
+        int minuteOfDay = Math.floorMod(startMinute, Appointment.MINUTES_PER_DAY);
+        int width = startCell(5);
+        putDigits(minuteOfDay / 60, 2);
+        buffer[length++] = ':';
+        putDigits(minuteOfDay % 60, 2);
+        return endCell(width - 5);
     }
 
-    public List<Patient> getAllPatients() {
-        return Collections.unmodifiableList(patients);
+    public TableRenderer endRow() throws IOException {
+        ensureRoom(LINE_SEPARATOR.length);
+        endLine();
+        column = 0;
+        return this;
     }
-}
 
-class AppointmentService {
-    private final List<Appointment> appointments = new ArrayList<>();
-    private final PatientService patientService;
+    public TableRenderer text(String line) throws IOException {
+        return line(line.toCharArray());
+    }
 
-    public AppointmentService(PatientService patientService) {
-        this.patientService = patientService;
+    public void flush() throws IOException {
+        pending.limit(length).position(0);
+        encoder.encode(pending, encoded, false);
+        drainEncoded();
+        int carried = pending.remaining();
+        System.arraycopy(buffer, pending.position(), buffer, 0, carried);
+        length = carried;
+        out.flush();
     }
 
-    public Appointment bookAppointment(String patientId, String doctorName, String date, String time, String reason) throws HospitalSystemException {
-        Patient patient = patientService.findPatientById(patientId)
-                                        .orElseThrow(() -> new PatientNotFoundException(patientId));
-        Appointment newAppointment = new Appointment(patient.getId(), patient.getName(), doctorName, date, time, reason);
-        appointments.add(newAppointment);
-        System.out.println("Appointment booked successfully!");
-        return newAppointment;
+    private TableRenderer line(char[] chars) throws IOException {
+        ensureRoom(chars.length + LINE_SEPARATOR.length);
+        System.arraycopy(chars, 0, buffer, length, chars.length);
+        length += chars.length;
+        endLine();
+        return this;
     }
 
-    public List<Appointment> getAppointmentsByPatientId(String patientId) throws PatientNotFoundException {
-        patientService.findPatientById(patientId)
-                      .orElseThrow(() -> new PatientNotFoundException(patientId));
-        return appointments.stream()
-                           .filter(a -> a.getPatientId().equalsIgnoreCase(patientId))
-                           .collect(Collectors.toList());
+    private void endLine() {
+        System.arraycopy(LINE_SEPARATOR, 0, buffer, length, LINE_SEPARATOR.length);
+        length += LINE_SEPARATOR.length;
     }
 
-    public List<Appointment> getAllAppointments() {
-        return Collections.unmodifiableList(appointments);
+    private int startCell(int valueLength) throws IOException {
+        int width = column < widths.length ? widths[column] : valueLength;
+        ensureRoom(Math.max(width, valueLength) + 4 + (column == 0 ? 1 : 0));
+        if (column == 0) {
+            buffer[length++] = '|';
+        }
+        buffer[length++] = ' ';
+        column++;
+        return width;
+    }
+
+    private TableRenderer endCell(int padding) {
+        for (int i = 0; i < padding; i++) {
+            buffer[length++] = ' ';
+        }
+        buffer[length++] = ' ';
+        buffer[length++] = '|';
+        return this;
+    }
+
+    private void putDigits(int value, int digits) {
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    private void ensureRoom(int chars) throws IOException {
+        if (length + chars > buffer.length) {
+            if (chars > buffer.length) {
+                throw new IOException("Table cell of " + chars + " characters exceeds the render buffer.");
+            }
+            flush();
+        }
     }
 
-    public boolean cancelAppointment(String appointmentId) throws AppointmentNotFoundException {
-        Appointment appointmentToRemove = appointments.stream()
-                .filter(a -> a.getAppointmentId().equalsIgnoreCase(appointmentId))
-                .findFirst()
-                .orElseThrow(() -> new AppointmentNotFoundException(appointmentId));
-        return appointments.remove(appointmentToRemove);
+    private void drainEncoded() throws IOException {
+        encoded.flip();
+        out.write(encoded.array(), 0, encoded.limit());
+        encoded.clear();
+    }
+
+    private static int stringSize(long value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
     }
 }
 
@@ -271,26 +5235,24 @@ class ConsoleUtil {
         }
     }
 
-    public static String getDateInput(String prompt) {
+    public static LocalDate getDateInput(String prompt) {
         String dateStr;
         while (true) {
             dateStr = getNonEmptyStringInput(prompt);
             try {
-                LocalDate.parse(dateStr, DATE_FORMATTER);
-                return dateStr;
+                return LocalDate.parse(dateStr, DATE_FORMATTER);
             } catch (DateTimeParseException e) {
                 System.out.println("Invalid date format. Please use YYYY-MM-DD.");
             }
         }
     }
 
-    public static String getTimeInput(String prompt) {
+    public static LocalTime getTimeInput(String prompt) {
         String timeStr;
         while (true) {
             timeStr = getNonEmptyStringInput(prompt);
             try {
-                LocalTime.parse(timeStr, TIME_FORMATTER);
-                return timeStr;
+                return LocalTime.parse(timeStr, TIME_FORMATTER);
             } catch (DateTimeParseException e) {
                 System.out.println("Invalid time format. Please use HH:MM (24-hour).");
             }
@@ -309,8 +5271,24 @@ class ConsoleUtil {
 
 public class Main {
     private static final AuthService authService = new AuthService();
-    private static final PatientService patientService = new PatientService();
-    private static final AppointmentService appointmentService = new AppointmentService(patientService);
+    private static final Path DATA_DIRECTORY = Paths.get(System.getProperty("hospital.dataDir", "hospital-data"));
+    private static final long SNAPSHOT_INTERVAL_MINUTES = Long.getLong("hospital.snapshotIntervalMinutes", 5);
+    private static final String PATIENT_STORE = System.getProperty("hospital.patientStore", "objects");
+    private static final String ID_SCHEME = System.getProperty("hospital.idScheme", "lease");
+    private static final int NODE_ID = Integer.getInteger("hospital.nodeId", 0);
+    private static final int REPLICATION_PORT = Integer.getInteger("hospital.replicationPort", 0);
+    private static final String REPLICA_OF = System.getProperty("hospital.replicaOf");
+    private static final String BIND_ADDRESS = System.getProperty("hospital.bindAddress", "127.0.0.1");
+    private static MutationLog mutationLog;
+    private static IdGenerator patientIds;
+    private static IdGenerator appointmentIds;
+    private static volatile ReplicationServer replicationServer;
+    private static ReplicationClient replicationClient;
+    private static SnapshotStore snapshotStore;
+    private static ScheduledExecutorService snapshotScheduler;
+    private static volatile long lastSnapshotPosition;
+    private static PatientService patientService;
+    private static AppointmentService appointmentService;
 
     private static final int REGISTER_PATIENT = 1;
     private static final int BOOK_APPOINTMENT = 2;
@@ -319,13 +5297,35 @@ public class Main {
     private static final int VIEW_ALL_PATIENTS = 5;
     private static final int VIEW_ALL_APPOINTMENTS = 6;
     private static final int VIEW_USER_ROLES = 7;
+    private static final int FIND_AVAILABLE_SLOTS = 8;
+    private static final int SEARCH_PATIENTS_BY_NAME = 9;
+    private static final int FIND_PATIENTS_BY_CONTACT = 10;
+    private static final int IMPORT_PATIENTS = 11;
+    private static final int EXPORT_REGISTRY = 12;
+    private static final int REPLICATION_STATUS = 13;
+    private static final int PROMOTE_REPLICA = 14;
     private static final int LOGOUT = 0;
+    private static final int LIST_PAGE_SIZE = 20;
+    private static final int NAME_SEARCH_LIMIT = 20;
 
     public static void main(String[] args) {
+        if (args.length == 2 && "--shard-server".equals(args[0])) {
+            runShardServer(Integer.parseInt(args[1]));
+            return;
+        }
+        if (args.length == 2 && "--binary-server".equals(args[0])) {
+            runBinaryServer(Integer.parseInt(args[1]));
+            return;
+        }
+        if (args.length == 2 && "--http-server".equals(args[0])) {
+            runHttpServer(Integer.parseInt(args[1]));
+            return;
+        }
         System.out.println("========================================");
         System.out.println("   Welcome to Enhanced Hospital System");
         System.out.println("========================================");
 
+        openServices(REPLICA_OF == null);
         String loggedInRole = login();
 
         if (loggedInRole != null) {
@@ -335,8 +5335,172 @@ public class Main {
             System.out.println("\nLogin failed. Exiting application.");
         }
 
-        ConsoleUtil.closeScanner();
-        System.out.println("\nThank you for using the Hospital System. Goodbye!");
+        ConsoleUtil.closeScanner();
+        closeServices();
+        System.out.println("\nThank you for using the Hospital System. Goodbye!");
+    }
+
+    private static void runShardServer(int port) {
+        openServices(false);
+        try {
+            ShardServer server = new ShardServer(BIND_ADDRESS, port, new LocalShard(NODE_ID, patientService, appointmentService));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    server.close();
+                } catch (IOException e) {
+                    System.err.println("Error stopping shard server: " + e.getMessage());
+                }
+                closeServices();
+            }));
+            System.out.println("Shard node " + NODE_ID + " serving " + patientService.getPatientCount() + " patients on " + BIND_ADDRESS + ":"
+                               + server.getPort() + ".");
+            server.serve();
+        } catch (IOException e) {
+            System.err.println("Shard server stopped: " + e.getMessage());
+        }
+    }
+
+    private static void runBinaryServer(int port) {
+        openServices(REPLICA_OF == null);
+        try {
+            BinaryProtocolServer server = new BinaryProtocolServer(BIND_ADDRESS, port, patientService, appointmentService);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.close();
+                closeServices();
+            }));
+            System.out.println("Serving the binary protocol for " + patientService.getPatientCount() + " patients on "
+                               + BIND_ADDRESS + ":" + server.getPort() + ".");
+            server.serve();
+        } catch (IOException e) {
+            System.err.println("Binary protocol server stopped: " + e.getMessage());
+        }
+    }
+
+    private static void runHttpServer(int port) {
+        openServices(REPLICA_OF == null);
+        try {
+            HttpApiServer server = new HttpApiServer(BIND_ADDRESS, port, patientService, appointmentService, authService);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.close();
+                closeServices();
+            }));
+            server.start();
+            System.out.println("Serving the HTTP API on " + BIND_ADDRESS + ":" + server.getPort() + " with " + server.describeThreads() + ".");
+        } catch (IOException e) {
+            System.err.println("HTTP server failed to start: " + e.getMessage());
+            closeServices();
+        }
+    }
+
+    private static void openServices(boolean withSamplePatients) {
+        Path logPath = DATA_DIRECTORY.resolve("mutations.log");
+        try {
+            mutationLog = MutationLog.open(logPath);
+            snapshotStore = new SnapshotStore(DATA_DIRECTORY.resolve("snapshot.bin"));
+            patientIds = IdGenerator.open(ID_SCHEME, NODE_ID, DATA_DIRECTORY.resolve("patient-ids.lease"));
+            appointmentIds = IdGenerator.open(ID_SCHEME, NODE_ID, DATA_DIRECTORY.resolve("appointment-ids.lease"));
+            patientService = new PatientService(mutationLog, PatientStore.create(PATIENT_STORE), patientIds);
+            appointmentService = new AppointmentService(patientService, mutationLog, appointmentIds);
+            long startedAt = System.nanoTime();
+            lastSnapshotPosition = snapshotStore.load(patientService, appointmentService);
+            int replayed = mutationLog.replay(lastSnapshotPosition, patientService, appointmentService);
+            if (lastSnapshotPosition == 0 && replayed == 0) {
+                if (withSamplePatients) {
+                    patientService.registerSamplePatients();
+                }
+            } else {
+                System.out.printf("Restored state from snapshot (log offset %d) plus %d logged changes in %d ms%n",
+                                  lastSnapshotPosition, replayed, (System.nanoTime() - startedAt) / 1_000_000);
+            }
+            snapshotScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "snapshot-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            snapshotScheduler.scheduleWithFixedDelay(Main::takeSnapshot, SNAPSHOT_INTERVAL_MINUTES,
+                                                     SNAPSHOT_INTERVAL_MINUTES, TimeUnit.MINUTES);
+            if (REPLICA_OF != null) {
+                replicationClient = new ReplicationClient(REPLICA_OF, mutationLog, patientService, appointmentService,
+                                                          Main::startReplicationServer);
+                replicationClient.start();
+                System.out.println("Replicating from " + REPLICA_OF + " (read-only until promoted).");
+            } else {
+                startReplicationServer();
+            }
+        } catch (IOException e) {
+            System.err.println("Could not open " + DATA_DIRECTORY + " (" + e.getMessage() + "). Refusing to start without it.");
+            if (snapshotScheduler != null) {
+                snapshotScheduler.shutdownNow();
+            }
+            closeAfterFailedStart(appointmentIds);
+            closeAfterFailedStart(patientIds);
+            closeAfterFailedStart(mutationLog);
+            System.exit(1);
+        }
+    }
+
+    private static void closeAfterFailedStart(Closeable resource) {
+        if (resource == null) {
+            return;
+        }
+        try {
+            resource.close();
+        } catch (IOException e) {
+            System.err.println("Error closing " + resource.getClass().getSimpleName() + ": " + e.getMessage());
+        }
+    }
+
+    private static void startReplicationServer() {
+        if (REPLICATION_PORT <= 0) {
+            return;
+        }
+        try {
+            replicationServer = new ReplicationServer(BIND_ADDRESS, REPLICATION_PORT, mutationLog);
+            replicationServer.start();
+            System.out.println("Shipping the mutation log to replicas on " + BIND_ADDRESS + ":" + replicationServer.getPort() + ".");
+        } catch (IOException e) {
+            System.err.println("Could not start replication on port " + REPLICATION_PORT + ": " + e.getMessage());
+        }
+    }
+
+    private static void takeSnapshot() {
+        if (snapshotStore == null || mutationLog.position() == lastSnapshotPosition) {
+            return;
+        }
+        try {
+            lastSnapshotPosition = snapshotStore.write(appointmentService);
+        } catch (IOException e) {
+            System.err.println("Error writing snapshot: " + e.getMessage());
+        }
+    }
+
+    private static void closeServices() {
+        if (mutationLog == null) {
+            return;
+        }
+        snapshotScheduler.shutdown();
+        if (replicationClient != null) {
+            replicationClient.close();
+        }
+        if (replicationServer != null) {
+            try {
+                replicationServer.close();
+            } catch (IOException e) {
+                System.err.println("Error stopping replication: " + e.getMessage());
+            }
+        }
+        takeSnapshot();
+        try {
+            mutationLog.close();
+        } catch (IOException e) {
+            System.err.println("Error closing mutation log: " + e.getMessage());
+        }
+        try {
+            patientIds.close();
+            appointmentIds.close();
+        } catch (IOException e) {
+            System.err.println("Error closing ID leases: " + e.getMessage());
+        }
     }
 
     private static String login() {
@@ -397,6 +5561,39 @@ public class Main {
                             System.out.println("Access Denied. Admin role required.");
                         }
                         break;
+                    case IMPORT_PATIENTS:
+                        if ("Admin".equals(role)) {
+                            handleImportPatients();
+                        } else {
+                            System.out.println("Access Denied. Admin role required.");
+                        }
+                        break;
+                    case EXPORT_REGISTRY:
+                        if ("Admin".equals(role)) {
+                            handleExportRegistry();
+                        } else {
+                            System.out.println("Access Denied. Admin role required.");
+                        }
+                        break;
+                    case FIND_AVAILABLE_SLOTS:
+                        handleFindAvailableSlots();
+                        break;
+                    case SEARCH_PATIENTS_BY_NAME:
+                        handleSearchPatientsByName();
+                        break;
+                    case FIND_PATIENTS_BY_CONTACT:
+                        handleFindPatientsByContact();
+                        break;
+                    case REPLICATION_STATUS:
+                        handleReplicationStatus();
+                        break;
+                    case PROMOTE_REPLICA:
+                        if ("Admin".equals(role)) {
+                            handlePromoteReplica();
+                        } else {
+                            System.out.println("Access Denied. Admin role required.");
+                        }
+                        break;
                     case LOGOUT:
                         System.out.println("Logging out...");
                         break;
@@ -427,16 +5624,45 @@ public class Main {
             System.out.println(VIEW_ALL_APPOINTMENTS + ". View All Appointments (Admin)");
             System.out.println(VIEW_USER_ROLES + ". View User Roles (Admin)");
         }
+        System.out.println(FIND_AVAILABLE_SLOTS + ". Find Next Available Slots");
+        System.out.println(SEARCH_PATIENTS_BY_NAME + ". Search Patients by Name");
+        System.out.println(FIND_PATIENTS_BY_CONTACT + ". Find Patients by Contact Number");
+        if ("Admin".equals(role)) {
+            System.out.println(IMPORT_PATIENTS + ". Import Patients from CSV (Admin)");
+            System.out.println(EXPORT_REGISTRY + ". Export Registry to CSV/JSON Lines (Admin)");
+        }
+        System.out.println(REPLICATION_STATUS + ". Replication Status");
+        if ("Admin".equals(role)) {
+            System.out.println(PROMOTE_REPLICA + ". Promote Replica to Primary (Admin)");
+        }
         System.out.println(LOGOUT + ". Logout");
     }
 
-    private static void handleRegisterPatient() throws HospitalSystemException {
+    private static void handleRegisterPatient() throws HospitalSystemException, IOException {
         System.out.println("\n--- Register New Patient ---");
         String name = ConsoleUtil.getNonEmptyStringInput("Enter Patient Name: ");
         int age = ConsoleUtil.getPositiveIntInput("Enter Patient Age: ");
         String gender = ConsoleUtil.getNonEmptyStringInput("Enter Patient Gender (Male/Female/Other): ");
         String contact = ConsoleUtil.getNonEmptyStringInput("Enter Patient Contact Number: ");
-        Patient newPatient = patientService.registerPatient(name, age, gender, contact);
+        Patient newPatient;
+        try {
+            newPatient = patientService.registerPatient(name, age, gender, contact);
+        } catch (DuplicatePatientException e) {
+            System.out.println(e.getMessage() + " Possible matches:");
+            TableRenderer table = TableRenderer.forPatients(System.out);
+            table.rule().header("ID", "Name", "Age", "Gender", "Contact").rule();
+            for (Patient p : e.getLikelyMatches()) {
+                table.row(p);
+            }
+            table.rule().flush();
+            String answer = ConsoleUtil.getStringInput("Register as a new patient anyway? (y/N): ");
+            if (!"y".equalsIgnoreCase(answer.trim())) {
+                System.out.println("Registration cancelled. Use the existing patient ID instead.");
+                return;
+            }
+            newPatient = patientService.registerPatient(name, age, gender, contact, true);
+        }
+        System.out.println("Patient registered successfully! Assigned ID: " + newPatient.getId());
         System.out.println("Details: " + newPatient.toString());
     }
 
@@ -447,14 +5673,15 @@ public class Main {
                 .orElseThrow(() -> new PatientNotFoundException(patientId));
         System.out.println("Booking for Patient: " + patient.getName() + " (ID: " + patient.getId() + ")");
         String doctorName = ConsoleUtil.getNonEmptyStringInput("Enter Doctor Name: ");
-        String date = ConsoleUtil.getDateInput("Enter Appointment Date (YYYY-MM-DD): ");
-        String time = ConsoleUtil.getTimeInput("Enter Appointment Time (HH:MM - 24hr format): ");
+        LocalDate date = ConsoleUtil.getDateInput("Enter Appointment Date (YYYY-MM-DD): ");
+        LocalTime time = ConsoleUtil.getTimeInput("Enter Appointment Time (HH:MM - 24hr format): ");
         String reason = ConsoleUtil.getNonEmptyStringInput("Enter Reason for Appointment: ");
         Appointment newAppointment = appointmentService.bookAppointment(patientId, doctorName, date, time, reason);
+        System.out.println("Appointment booked successfully!");
         System.out.println("Details: " + newAppointment.toString());
     }
 
-    private static void handleViewAppointmentsByPatientId() throws HospitalSystemException {
+    private static void handleViewAppointmentsByPatientId() throws HospitalSystemException, IOException {
         System.out.println("\n--- View Appointments by Patient ID ---");
         String searchId = ConsoleUtil.getNonEmptyStringInput("Enter Patient ID to view appointments: ");
         Patient patient = patientService.findPatientById(searchId)
@@ -464,15 +5691,12 @@ public class Main {
         if (patientAppointments.isEmpty()) {
             System.out.println("No appointments found for this patient.");
         } else {
-            System.out.println("-------------------------------------------------------------------------------------------------------------------------");
-            System.out.printf("| %-7s | %-10s | %-20s | %-15s | %-10s | %-8s | %-25s |%n",
-                              "App. ID", "Patient ID", "Patient Name", "Doctor", "Date", "Time", "Reason");
-            System.out.println("-------------------------------------------------------------------------------------------------------------------------");
+            TableRenderer table = TableRenderer.forAppointments(System.out);
+            table.dashes().header("App. ID", "Patient ID", "Patient Name", "Doctor", "Date", "Time", "Reason").dashes();
             for (Appointment a : patientAppointments) {
-                System.out.println(a.toFormattedString());
+                table.row(a);
             }
-            System.out.println("-------------------------------------------------------------------------------------------------------------------------");
-            System.out.println("Total appointments found: " + patientAppointments.size());
+            table.dashes().text("Total appointments found: " + patientAppointments.size()).flush();
         }
     }
 
@@ -487,39 +5711,176 @@ public class Main {
         }
     }
 
-    private static void handleViewAllPatients() {
+    private static void handleFindAvailableSlots() throws HospitalSystemException {
+        System.out.println("\n--- Find Next Available Slots ---");
+        String doctors = ConsoleUtil.getNonEmptyStringInput("Enter Doctor Name(s), comma-separated: ");
+        LocalDate date = ConsoleUtil.getDateInput("Search From Date (YYYY-MM-DD): ");
+        LocalTime time = ConsoleUtil.getTimeInput("Search From Time (HH:MM - 24hr format): ");
+        int count = ConsoleUtil.getPositiveIntInput("Number of slots to show: ");
+        List<String> doctorNames = new ArrayList<>();
+        for (String doctor : doctors.split(",")) {
+            if (!doctor.trim().isEmpty()) {
+                doctorNames.add(doctor.trim());
+            }
+        }
+        List<FreeSlot> slots = appointmentService.findNextAvailableSlots(doctorNames, date, time, count);
+        if (slots.isEmpty()) {
+            System.out.println("No free slots found in the next " + DoctorScheduleIndex.SEARCH_HORIZON_DAYS + " days.");
+            return;
+        }
+        System.out.println("-------------------------------------------");
+        System.out.printf("| %-15s | %-10s | %-8s |%n", "Doctor", "Date", "Time");
+        System.out.println("-------------------------------------------");
+        for (FreeSlot slot : slots) {
+            System.out.printf("| %-15s | %-10s | %-8s |%n", slot.getDoctorName(), slot.getDate(), slot.getTime());
+        }
+        System.out.println("-------------------------------------------");
+    }
+
+    private static void handleSearchPatientsByName() throws HospitalSystemException, IOException {
+        System.out.println("\n--- Search Patients by Name ---");
+        String prefix = ConsoleUtil.getNonEmptyStringInput("Enter the start of the patient's first name or surname: ");
+        List<Patient> matches = patientService.searchPatientsByName(prefix, NAME_SEARCH_LIMIT);
+        if (matches.isEmpty()) {
+            matches = patientService.fuzzySearchPatientsByName(prefix, NAME_SEARCH_LIMIT);
+            if (matches.isEmpty()) {
+                System.out.println("No patients found matching '" + prefix + "'.");
+                return;
+            }
+            System.out.println("No exact matches for '" + prefix + "'. Closest names:");
+        }
+        TableRenderer table = TableRenderer.forPatients(System.out);
+        table.rule().header("ID", "Name", "Age", "Gender", "Contact").rule();
+        for (Patient p : matches) {
+            table.row(p);
+        }
+        table.rule().text("Matches shown: " + matches.size()).flush();
+    }
+
+    private static void handleFindPatientsByContact() throws HospitalSystemException, IOException {
+        System.out.println("\n--- Find Patients by Contact Number ---");
+        String contact = ConsoleUtil.getNonEmptyStringInput("Enter Contact Number: ");
+        List<Patient> matches = patientService.findPatientsByContactNumber(contact);
+        if (matches.isEmpty()) {
+            System.out.println("No patients registered with contact number '" + contact + "'.");
+            return;
+        }
+        TableRenderer table = TableRenderer.forPatients(System.out);
+        table.rule().header("ID", "Name", "Age", "Gender", "Contact").rule();
+        for (Patient p : matches) {
+            table.row(p);
+        }
+        table.rule().text("Patients found: " + matches.size()).flush();
+    }
+
+    private static void handleViewAllPatients() throws HospitalSystemException, IOException {
         System.out.println("\n--- View All Registered Patients ---");
-        List<Patient> allPatients = patientService.getAllPatients();
-        if (allPatients.isEmpty()) {
+        int totalPatients = patientService.getPatientCount();
+        if (totalPatients == 0) {
             System.out.println("No patients registered yet.");
             return;
         }
-        System.out.println("Total Patients: " + allPatients.size());
-        System.out.println("+-------+----------------------+-------+------------+-----------------+");
-        System.out.printf("| %-5s | %-20s | %-5s | %-10s | %-15s |%n", "ID", "Name", "Age", "Gender", "Contact");
-        System.out.println("+-------+----------------------+-------+------------+-----------------+");
-        for (Patient p : allPatients) {
-            System.out.println(p.toFormattedString());
-        }
-        System.out.println("+-------+----------------------+-------+------------+-----------------+");
+        System.out.println("Total Patients: " + totalPatients);
+        TableRenderer table = TableRenderer.forPatients(System.out);
+        String cursor = null;
+        do {
+            Page<Patient> page = patientService.listPatients(cursor, LIST_PAGE_SIZE);
+            table.rule().header("ID", "Name", "Age", "Gender", "Contact").rule();
+            for (Patient p : page.getItems()) {
+                table.row(p);
+            }
+            table.rule().flush();
+            cursor = page.getNextCursor();
+        } while (cursor != null && continuePaging());
     }
 
-    private static void handleViewAllAppointments() {
+    private static void handleViewAllAppointments() throws HospitalSystemException, IOException {
         System.out.println("\n--- View All Booked Appointments ---");
-        List<Appointment> allAppointments = appointmentService.getAllAppointments();
-        if (allAppointments.isEmpty()) {
+        int totalAppointments = appointmentService.getAppointmentCount();
+        if (totalAppointments == 0) {
             System.out.println("No appointments booked yet.");
             return;
         }
-        System.out.println("Total Appointments: " + allAppointments.size());
-        System.out.println("+---------+------------+----------------------+-----------------+------------+----------+---------------------------+");
-        System.out.printf("| %-7s | %-10s | %-20s | %-15s | %-10s | %-8s | %-25s |%n",
-                          "App. ID", "Patient ID", "Patient Name", "Doctor", "Date", "Time", "Reason");
-        System.out.println("+---------+------------+----------------------+-----------------+------------+----------+---------------------------+");
-        for (Appointment a : allAppointments) {
-            System.out.println(a.toFormattedString());
+        System.out.println("Total Appointments: " + totalAppointments);
+        TableRenderer table = TableRenderer.forAppointments(System.out);
+        String cursor = null;
+        do {
+            Page<Appointment> page = appointmentService.listAppointments(cursor, LIST_PAGE_SIZE);
+            table.rule().header("App. ID", "Patient ID", "Patient Name", "Doctor", "Date", "Time", "Reason").rule();
+            for (Appointment a : page.getItems()) {
+                table.row(a);
+            }
+            table.rule().flush();
+            cursor = page.getNextCursor();
+        } while (cursor != null && continuePaging());
+    }
+
+    private static boolean continuePaging() {
+        String answer = ConsoleUtil.getStringInput("Press Enter for the next page, or type Q to stop: ");
+        return !"q".equalsIgnoreCase(answer.trim());
+    }
+
+    private static void handleImportPatients() throws HospitalSystemException, IOException {
+        System.out.println("\n--- Import Patients from CSV ---");
+        System.out.println("Expected columns: name,age,gender,contact (header row optional).");
+        Path file = Paths.get(ConsoleUtil.getNonEmptyStringInput("Enter CSV file path: "));
+        if (!Files.isRegularFile(file)) {
+            throw new HospitalSystemException("File '" + file + "' does not exist.");
+        }
+        long started = System.nanoTime();
+        PatientImporter.Result result = new PatientImporter(patientService).importCsv(file,
+                (bytesRead, totalBytes, imported, rejected) -> System.out.printf("\rRead %d%% - %,d imported, %,d rejected",
+                        totalBytes == 0 ? 100 : bytesRead * 100 / totalBytes, imported, rejected));
+        System.out.println();
+        for (String error : result.errors) {
+            System.out.println("  " + error);
+        }
+        if (result.rejected > result.errors.size()) {
+            System.out.println("  ... and " + (result.rejected - result.errors.size()) + " more rejected rows.");
+        }
+        System.out.printf("Import finished in %.1f s: %,d patients imported, %,d rows rejected.%n",
+                          (System.nanoTime() - started) / 1e9, result.imported, result.rejected);
+    }
+
+    private static void handleExportRegistry() throws HospitalSystemException, IOException {
+        System.out.println("\n--- Export Registry ---");
+        Path directory = Paths.get(ConsoleUtil.getNonEmptyStringInput("Enter output directory: "));
+        RegistryExporter.Format format = RegistryExporter.Format.parse(ConsoleUtil.getNonEmptyStringInput("Format (csv/jsonl): "));
+        long started = System.nanoTime();
+        RegistryExporter.Result result = RegistryExporter.export(appointmentService, directory, format);
+        System.out.printf("Exported %,d patients to %s and %,d appointments to %s in %.1f s (log offset %d).%n",
+                          result.patients, result.patientsFile, result.appointments, result.appointmentsFile,
+                          (System.nanoTime() - started) / 1e9, result.logPosition);
+    }
+
+    private static void handleReplicationStatus() {
+        System.out.println("\n--- Replication Status ---");
+        if (mutationLog == null) {
+            System.out.println("Changes are not being saved, so nothing is replicated.");
+            return;
+        }
+        System.out.println("Log position: " + mutationLog.position());
+        if (replicationClient != null && replicationClient.isReplicating()) {
+            System.out.println("Role: read-only replica of " + replicationClient.getPrimaryAddress()
+                               + (replicationClient.isStopped() ? " (stopped)" : replicationClient.isConnected() ? " (connected)" : " (disconnected)"));
+            System.out.printf("Replication lag: %,d bytes, %,d ms%n", replicationClient.getLagBytes(), replicationClient.getLagMillis());
+            if (replicationClient.getLastError() != null) {
+                System.out.println("Last error: " + replicationClient.getLastError());
+            }
+        } else {
+            System.out.println("Role: primary");
+            System.out.println(replicationServer == null ? "Replication is off (set -Dhospital.replicationPort to enable it)."
+                                                         : "Connected replicas: " + replicationServer.connectedReplicas());
+        }
+    }
+
+    private static void handlePromoteReplica() {
+        if (replicationClient == null || !replicationClient.isReplicating()) {
+            System.out.println("This node is already the primary.");
+            return;
         }
-        System.out.println("+---------+------------+----------------------+-----------------+------------+----------+---------------------------+");
+        replicationClient.promote();
+        System.out.println("Promoted to primary at log position " + mutationLog.position() + ". Point clients here.");
     }
 
     private static void handleViewUserRoles() {
@@ -533,4 +5894,786 @@ public class Main {
         }
         System.out.println("---------------------------");
     }
+}
+
+class HospitalBenchmark {
+    private static final int DOCTORS = 1_000;
+    private static final int SLOTS_PER_DAY = 32;
+    private static final LocalDate FIRST_DAY = LocalDate.of(2030, 1, 1);
+    private static final String[] FIRST_NAMES = {"James", "Mary", "Ahmed", "Priya", "Wei", "Olga", "Carlos", "Fatima"};
+    private static final String CONSONANTS = "bcdfghjklmnprstvwz";
+    private static final String VOWELS = "aeiou";
+    private static final int MAX_LATENCY_SAMPLES = 1 << 20;
+    private static final String CSV_HEADER = "timestamp,benchmark,records,ops,ops_per_sec,p50_ns,p99_ns,p999_ns,alloc_bytes_per_op,gc_count,gc_ms";
+
+    private static final String FORKED_RESULT_PREFIX = "forked-result:";
+
+    private static volatile Object sink;
+
+    interface Operation {
+        Object run(int i) throws Exception;
+    }
+
+    static class Result {
+        final String benchmark;
+        final int records;
+        final long ops;
+        final double opsPerSecond;
+        final long p50;
+        final long p99;
+        final long p999;
+        final double allocatedBytesPerOp;
+        final long gcCount;
+        final long gcMillis;
+
+        Result(String benchmark, int records, long ops, double opsPerSecond, long p50, long p99, long p999,
+               double allocatedBytesPerOp, long gcCount, long gcMillis) {
+            this.benchmark = benchmark;
+            this.records = records;
+            this.ops = ops;
+            this.opsPerSecond = opsPerSecond;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.allocatedBytesPerOp = allocatedBytesPerOp;
+            this.gcCount = gcCount;
+            this.gcMillis = gcMillis;
+        }
+
+        static Result fromCsv(String line) {
+            String[] fields = line.split(",");
+            return new Result(fields[1], Integer.parseInt(fields[2]), Long.parseLong(fields[3]), Double.parseDouble(fields[4]),
+                              Long.parseLong(fields[5]), Long.parseLong(fields[6]), Long.parseLong(fields[7]),
+                              Double.parseDouble(fields[8]), Long.parseLong(fields[9]), Long.parseLong(fields[10]));
+        }
+
+        String toCsv(String timestamp) {
+            return String.format(Locale.ROOT, "%s,%s,%d,%d,%.1f,%d,%d,%d,%.1f,%d,%d", timestamp, benchmark, records, ops,
+                                 opsPerSecond, p50, p99, p999, allocatedBytesPerOp, gcCount, gcMillis);
+        }
+
+        String toRow() {
+            return String.format(Locale.ROOT, "| %-38s | %10d | %14.0f | %9d | %9d | %9d | %12.1f | %6d |", benchmark, records,
+                                 opsPerSecond, p50, p99, p999, allocatedBytesPerOp, gcMillis);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = {1_000, 10_000, 100_000, 1_000_000};
+        Set<String> selected = new LinkedHashSet<>(Arrays.asList("findPatientById", "findPatientById.linearScan",
+                "searchPatientsByName", "fuzzySearchPatientsByName", "findLikelyDuplicates", "findPatientsByContactNumber",
+                "bookAppointment", "getAppointmentsByPatientId", "cancelAppointment", "Patient.toFormattedString",
+                "Appointment.toFormattedString"));
+        long warmupMillis = 1_000;
+        long measureMillis = 2_000;
+        Path output = null;
+        String patientStore = "objects";
+        String shards = null;
+        int stressThreads = 0;
+        boolean fork = false;
+        boolean forked = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--sizes":
+                    sizes = Arrays.stream(args[++i].split(",")).mapToInt(size -> (int) Double.parseDouble(size.trim())).toArray();
+                    break;
+                case "--benchmarks":
+                    selected = new LinkedHashSet<>(Arrays.asList(args[++i].split(",")));
+                    break;
+                case "--warmup-ms":
+                    warmupMillis = Long.parseLong(args[++i]);
+                    break;
+                case "--measure-ms":
+                    measureMillis = Long.parseLong(args[++i]);
+                    break;
+                case "--patient-store":
+                    patientStore = args[++i];
+                    break;
+                case "--shards":
+                    shards = args[++i];
+                    break;
+                case "--out":
+                    output = Paths.get(args[++i]);
+                    break;
+                case "--stress":
+                    stressThreads = Integer.parseInt(args[++i]);
+                    break;
+                case "--fork":
+                    fork = true;
+                    break;
+                case "--forked":
+                    forked = true;
+                    break;
+                default:
+                    System.err.println("Usage: java HospitalBenchmark [--sizes 1e3,1e4,...] [--benchmarks name,...]"
+                                       + " [--warmup-ms N] [--measure-ms N] [--patient-store objects|columnar]"
+                                       + " [--shards N|host:port,...] [--fork] [--stress THREADS] [--out results.csv]");
+                    return;
+            }
+        }
+
+        if (stressThreads > 0) {
+            boolean passed = true;
+            for (int size : sizes) {
+                passed &= stress(size, stressThreads, patientStore);
+            }
+            if (!passed) {
+                System.exit(1);
+            }
+            return;
+        }
+
+        List<Result> results = new ArrayList<>();
+        for (int size : sizes) {
+            if (fork) {
+                for (String benchmark : selected) {
+                    results.addAll(runForked(size, benchmark, warmupMillis, measureMillis, patientStore, shards));
+                }
+                continue;
+            }
+            System.out.println("Preparing dataset with " + size + " patients and " + size + " appointments...");
+            Dataset dataset = shards == null ? Dataset.create(size, patientStore) : Dataset.createSharded(size, shards);
+            for (String benchmark : selected) {
+                Operation operation = dataset.operation(benchmark);
+                if (operation == null) {
+                    System.err.println((dataset.router == null ? "Unknown benchmark '" : "No routed version of '") + benchmark + "', skipping.");
+                    continue;
+                }
+                long maxOps = "cancelAppointment".equals(benchmark) ? dataset.appointmentIds.length : Long.MAX_VALUE;
+                String label = dataset.router == null ? benchmark : benchmark + " [" + dataset.router.shardCount() + " shards]";
+                results.add(measure(label, size, operation, warmupMillis, measureMillis, maxOps));
+            }
+            if (dataset.router != null) {
+                dataset.router.close();
+            }
+        }
+        if (forked) {
+            for (Result result : results) {
+                System.out.println(FORKED_RESULT_PREFIX + result.toCsv(""));
+            }
+            return;
+        }
+        print(results);
+        if (output != null) {
+            publish(output, results);
+        }
+    }
+
+    static class Dataset {
+        final int size;
+        final PatientService patientService;
+        final AppointmentService appointmentService;
+        final ShardRouter router;
+        final String[] patientIds;
+        final String[] appointmentIds;
+        final Patient[] patients;
+        final Appointment[] appointments;
+        final Random random = new Random(42);
+        int nextBooking;
+        int nextCancellation;
+
+        private Dataset(int size, String patientStore) {
+            this(size, new PatientService(null, PatientStore.create(patientStore)), null);
+        }
+
+        private Dataset(int size, PatientService patientService, ShardRouter router) {
+            this.size = size;
+            this.patientService = patientService;
+            this.appointmentService = patientService == null ? null : new AppointmentService(patientService);
+            this.router = router;
+            this.patientIds = new String[size];
+            this.appointmentIds = new String[size];
+            this.patients = new Patient[Math.min(size, 4096)];
+            this.appointments = new Appointment[Math.min(size, 4096)];
+        }
+
+        static Dataset create(int size, String patientStore) throws HospitalSystemException {
+            Dataset dataset = new Dataset(size, patientStore);
+            long heapBefore = usedHeap();
+            for (int i = 0; i < size; i++) {
+                dataset.patientService.registerPatient(name(i), 1 + i % 99, i % 2 == 0 ? "Female" : "Male",
+                                                       "555-" + (1_000_000 + i), true);
+            }
+            System.out.printf(Locale.ROOT, "Heap per patient (%s store, all indexes): %.0f bytes%n", patientStore,
+                              (double) (usedHeap() - heapBefore) / size);
+            int loaded = 0;
+            String cursor = null;
+            do {
+                Page<Patient> page = dataset.patientService.listPatients(cursor, Page.MAX_PAGE_SIZE);
+                for (Patient patient : page.getItems()) {
+                    if (loaded < dataset.patients.length) {
+                        dataset.patients[loaded] = patient;
+                    }
+                    dataset.patientIds[loaded++] = patient.getId();
+                }
+                cursor = page.getNextCursor();
+            } while (cursor != null);
+            dataset.bookAll();
+            return dataset;
+        }
+
+        static Dataset createSharded(int size, String shards) throws HospitalSystemException {
+            IdGenerator patientIds = new SnowflakeIdGenerator(IdGenerator.MAX_NODE);
+            ShardRouter router = shards.matches("\\d+") ? ShardRouter.inProcess(Integer.parseInt(shards), "lease", patientIds)
+                                                       : ShardRouter.connect(shards, "lease", patientIds);
+            Dataset dataset = new Dataset(size, null, router);
+            for (int i = 0; i < size; i++) {
+                Patient patient = router.registerPatient(name(i), 1 + i % 99, i % 2 == 0 ? "Female" : "Male",
+                                                         "555-" + (1_000_000 + i), true);
+                if (i < dataset.patients.length) {
+                    dataset.patients[i] = patient;
+                }
+                dataset.patientIds[i] = patient.getId();
+            }
+            dataset.bookAll();
+            return dataset;
+        }
+
+        private void bookAll() throws HospitalSystemException {
+            for (int i = 0; i < size; i++) {
+                Appointment appointment = book(patientIds[i % size], i);
+                appointmentIds[i] = appointment.getAppointmentId();
+                if (i < appointments.length) {
+                    appointments[i] = appointment;
+                }
+            }
+            nextBooking = size;
+            Collections.shuffle(Arrays.asList(appointmentIds), random);
+        }
+
+        static String name(int i) {
+            StringBuilder surname = new StringBuilder();
+            for (int rest = i; surname.length() == 0 || rest > 0; rest /= 90) {
+                surname.append(CONSONANTS.charAt(rest % 18)).append(VOWELS.charAt(rest / 18 % 5));
+            }
+            surname.setCharAt(0, Character.toUpperCase(surname.charAt(0)));
+            return FIRST_NAMES[i % FIRST_NAMES.length] + " " + surname;
+        }
+
+        Appointment book(String patientId, int sequence) throws HospitalSystemException {
+            int slot = (sequence / DOCTORS) % SLOTS_PER_DAY;
+            LocalDate day = FIRST_DAY.plusDays(sequence / (DOCTORS * SLOTS_PER_DAY));
+            LocalTime time = LocalTime.ofSecondOfDay(60L * (DoctorScheduleIndex.CLINIC_OPENING_MINUTE + AppointmentService.APPOINTMENT_MINUTES * slot));
+            if (router != null) {
+                return router.bookAppointment(patientId, "Dr " + (sequence % DOCTORS), day, time, "Routine checkup");
+            }
+            return appointmentService.bookAppointment(patientId, "Dr " + (sequence % DOCTORS), day, time, "Routine checkup");
+        }
+
+        Operation operation(String benchmark) {
+            return router == null ? localOperation(benchmark) : routedOperation(benchmark);
+        }
+
+        private Operation routedOperation(String benchmark) {
+            switch (benchmark) {
+                case "findPatientById":
+                    return i -> router.findPatientById(patientIds[random.nextInt(size)]);
+                case "getAppointmentsByPatientId":
+                    return i -> router.getAppointmentsByPatientId(patientIds[random.nextInt(size)]);
+                case "bookAppointment":
+                    return i -> book(patientIds[random.nextInt(size)], nextBooking++);
+                case "cancelAppointment":
+                    return i -> router.cancelAppointment(appointmentIds[nextCancellation++]);
+                default:
+                    return null;
+            }
+        }
+
+        private Operation localOperation(String benchmark) {
+            switch (benchmark) {
+                case "findPatientById":
+                    return i -> patientService.findPatientById(patientIds[random.nextInt(size)]);
+                case "findPatientById.linearScan":
+                    List<Patient> all = patientService.getAllPatients();
+                    return i -> {
+                        String patientId = patientIds[random.nextInt(size)];
+                        return all.stream().filter(p -> p.getId().equalsIgnoreCase(patientId)).findFirst();
+                    };
+                case "searchPatientsByName":
+                    return i -> patientService.searchPatientsByName(name(random.nextInt(size)).substring(0, 4), 20);
+                case "fuzzySearchPatientsByName":
+                    return i -> patientService.fuzzySearchPatientsByName(name(random.nextInt(size)).replace('a', 'e'), 10);
+                case "findPatientsByContactNumber":
+                    return i -> patientService.findPatientsByContactNumber("(555) " + (1_000_000 + random.nextInt(size)));
+                case "findLikelyDuplicates":
+                    return i -> {
+                        int n = random.nextInt(size);
+                        return patientService.findLikelyDuplicates(name(n), 1 + n % 99, "555-" + (1_000_000 + n));
+                    };
+                case "getAppointmentsByPatientId":
+                    return i -> appointmentService.getAppointmentsByPatientId(patientIds[random.nextInt(size)]);
+                case "bookAppointment":
+                    return i -> book(patientIds[random.nextInt(size)], nextBooking++);
+                case "cancelAppointment":
+                    return i -> appointmentService.cancelAppointment(appointmentIds[nextCancellation++]);
+                case "Patient.toFormattedString":
+                    return i -> patients[i % patients.length].toFormattedString();
+                case "Appointment.toFormattedString":
+                    return i -> appointments[i % appointments.length].toFormattedString();
+                default:
+                    return null;
+            }
+        }
+    }
+
+    static boolean stress(int size, int threads, String patientStore) throws InterruptedException {
+        System.out.println("Registering " + size + " patients from " + threads + " threads while listing...");
+        PatientService patientService = new PatientService(null, PatientStore.create(patientStore));
+        int before = patientService.getPatientCount();
+        String[][] registered = new String[threads][];
+        Exception[] errors = new Exception[threads + 1];
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            int from = (int) ((long) size * t / threads);
+            registered[t] = new String[(int) ((long) size * (t + 1) / threads) - from];
+            writers[t] = new Thread(() -> {
+                try {
+                    for (int n = 0; n < registered[thread].length; n++) {
+                        registered[thread][n] = patientService.registerPatient(Dataset.name(from + n), 1 + n % 99, "Female",
+                                                                               "555-" + (1_000_000 + from + n), true).getId();
+                    }
+                } catch (Exception e) {
+                    errors[thread] = e;
+                }
+            }, "stress-" + t);
+        }
+        AtomicBoolean done = new AtomicBoolean();
+        int[] listings = new int[1];
+        Thread reader = new Thread(() -> {
+            try {
+                while (!done.get()) {
+                    String cursor = null;
+                    do {
+                        Page<Patient> page = patientService.listPatients(cursor, Page.MAX_PAGE_SIZE);
+                        cursor = page.getNextCursor();
+                    } while (cursor != null);
+                    listings[0]++;
+                }
+            } catch (Exception e) {
+                errors[threads] = e;
+            }
+        }, "stress-reader");
+        long start = System.nanoTime();
+        reader.start();
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        done.set(true);
+        reader.join();
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        List<String> failures = new ArrayList<>();
+        for (Exception error : errors) {
+            if (error != null) {
+                failures.add(error.toString());
+            }
+        }
+        Set<String> ids = new HashSet<>();
+        int unresolved = 0;
+        for (String[] ofThread : registered) {
+            for (String id : ofThread) {
+                if (id != null && !ids.add(id)) {
+                    failures.add("duplicate ID " + id);
+                }
+                if (id == null || !patientService.findPatientById(id).isPresent()) {
+                    unresolved++;
+                }
+            }
+        }
+        if (unresolved > 0) {
+            failures.add(unresolved + " registered patients cannot be found by ID");
+        }
+        if (patientService.getPatientCount() - before != size) {
+            failures.add("count is " + (patientService.getPatientCount() - before) + ", expected " + size);
+        }
+        int listed = 0;
+        try {
+            String cursor = null;
+            do {
+                Page<Patient> page = patientService.listPatients(cursor, Page.MAX_PAGE_SIZE);
+                listed += page.getItems().size();
+                cursor = page.getNextCursor();
+            } while (cursor != null);
+        } catch (HospitalSystemException e) {
+            failures.add(e.toString());
+        }
+        if (listed - before != size) {
+            failures.add("listing holds " + (listed - before) + ", expected " + size);
+        }
+        if (failures.isEmpty()) {
+            System.out.printf(Locale.ROOT, "PASS: %d unique IDs in %d ms, %d concurrent full listings.%n", ids.size(), elapsedMillis, listings[0]);
+            return true;
+        }
+        System.out.println("FAIL: " + String.join("; ", failures.subList(0, Math.min(10, failures.size()))));
+        return false;
+    }
+
+    static List<Result> runForked(int size, String benchmark, long warmupMillis, long measureMillis, String patientStore,
+                                  String shards) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), HospitalBenchmark.class.getName(),
+                                     "--sizes", Integer.toString(size), "--benchmarks", benchmark,
+                                     "--warmup-ms", Long.toString(warmupMillis), "--measure-ms", Long.toString(measureMillis),
+                                     "--patient-store", patientStore, "--forked"));
+        if (shards != null) {
+            command.addAll(Arrays.asList("--shards", shards));
+        }
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        List<Result> results = new ArrayList<>();
+        try (BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = out.readLine()) != null) {
+                if (line.startsWith(FORKED_RESULT_PREFIX)) {
+                    results.add(Result.fromCsv(line.substring(FORKED_RESULT_PREFIX.length())));
+                } else {
+                    System.out.println(line);
+                }
+            }
+        }
+        int status = process.waitFor();
+        if (status != 0) {
+            System.err.println("Forked run of " + benchmark + " at " + size + " patients exited with status " + status + ".");
+        }
+        return results;
+    }
+
+    static Result measure(String benchmark, int records, Operation operation, long warmupMillis, long measureMillis,
+                          long maxOps) throws Exception {
+        long warmupOps = maxOps / 10;
+        long warmupEnd = System.nanoTime() + warmupMillis * 1_000_000;
+        int i = 0;
+        while (i < warmupOps && System.nanoTime() < warmupEnd) {
+            sink = operation.run(i++);
+        }
+
+        long[] latencies = new long[MAX_LATENCY_SAMPLES];
+        int samples = 0;
+        long ops = 0;
+        long gcCountBefore = gcCount();
+        long gcMillisBefore = gcMillis();
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long end = start + measureMillis * 1_000_000;
+        long now = start;
+        while (now < end && i < maxOps) {
+            sink = operation.run(i++);
+            long after = System.nanoTime();
+            if (samples < latencies.length) {
+                latencies[samples++] = after - now;
+            }
+            now = after;
+            ops++;
+        }
+        long elapsed = now - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        Arrays.sort(latencies, 0, samples);
+        return new Result(benchmark, records, ops, ops * 1e9 / Math.max(1, elapsed),
+                          percentile(latencies, samples, 0.50), percentile(latencies, samples, 0.99),
+                          percentile(latencies, samples, 0.999), ops == 0 ? 0 : (double) allocated / ops,
+                          gcCount() - gcCountBefore, gcMillis() - gcMillisBefore);
+    }
+
+    private static long percentile(long[] sorted, int count, double fraction) {
+        return count == 0 ? 0 : sorted[Math.min(count - 1, (int) (count * fraction))];
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long gcCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, collector.getCollectionCount());
+        }
+        return total;
+    }
+
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, collector.getCollectionTime());
+        }
+        return total;
+    }
+
+    private static void print(List<Result> results) {
+        String rule = "+----------------------------------------+------------+----------------+-----------+-----------+-----------+--------------+--------+";
+        System.out.println(rule);
+        System.out.printf("| %-38s | %10s | %14s | %9s | %9s | %9s | %12s | %6s |%n",
+                          "Benchmark", "Records", "Ops/sec", "p50 ns", "p99 ns", "p99.9 ns", "Alloc B/op", "GC ms");
+        System.out.println(rule);
+        for (Result result : results) {
+            System.out.println(result.toRow());
+        }
+        System.out.println(rule);
+    }
+
+    private static void publish(Path output, List<Result> results) throws IOException {
+        boolean writeHeader = !Files.exists(output) || Files.size(output) == 0;
+        String timestamp = java.time.Instant.now().toString();
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(output, StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+            if (writeHeader) {
+                out.println(CSV_HEADER);
+            }
+            for (Result result : results) {
+                out.println(result.toCsv(timestamp));
+            }
+        }
+        System.out.println("Results appended to " + output);
+    }
+}
+
+class BinaryLoadGenerator {
+    private static final String[] OPERATIONS = {"findPatientById", "bookAppointment", "cancelAppointment"};
+    private static final long FIRST_START_MINUTE = LocalDate.of(2030, 1, 1).toEpochDay() * Appointment.MINUTES_PER_DAY
+                                                   + DoctorScheduleIndex.CLINIC_OPENING_MINUTE;
+
+    static class Worker implements Runnable {
+        final int index;
+        final String host;
+        final int port;
+        final int pipeline;
+        final int patients;
+        final int bookPercent;
+        final int cancelPercent;
+        final String doctorName;
+        final long measureFrom;
+        final long stopAt;
+        final long[][] latencies = new long[OPERATIONS.length][1024];
+        final int[] samples = new int[OPERATIONS.length];
+        final long[] failures = new long[OPERATIONS.length];
+        final long[] statuses = new long[6];
+        IOException error;
+
+        Worker(int index, String host, int port, int pipeline, int patients, int bookPercent, int cancelPercent, String runId,
+               long measureFrom, long stopAt) {
+            this.index = index;
+            this.host = host;
+            this.port = port;
+            this.pipeline = pipeline;
+            this.patients = patients;
+            this.bookPercent = bookPercent;
+            this.cancelPercent = cancelPercent;
+            this.doctorName = "Load " + runId + "-" + index;
+            this.measureFrom = measureFrom;
+            this.stopAt = stopAt;
+        }
+
+        @Override
+        public void run() {
+            try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port))) {
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                drive(channel);
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        private void drive(SocketChannel channel) throws IOException {
+            long[] sentAt = new long[pipeline];
+            byte[] sentOperation = new byte[pipeline];
+            int[] freeSlots = new int[pipeline];
+            for (int i = 0; i < pipeline; i++) {
+                freeSlots[i] = i;
+            }
+            ByteBuffer requests = ByteBuffer.allocate(pipeline * 128);
+            ByteBuffer responses = ByteBuffer.allocate(1 << 20);
+            ArrayDeque<Long> booked = new ArrayDeque<>();
+            Random random = new Random(index);
+            long bookings = 0;
+            int outstanding = 0;
+            while (outstanding > 0 || System.nanoTime() < stopAt) {
+                if (System.nanoTime() < stopAt) {
+                    while (outstanding < pipeline) {
+                        int roll = random.nextInt(100);
+                        int slot = freeSlots[outstanding];
+                        if (roll < cancelPercent && !booked.isEmpty()) {
+                            BinaryProtocol.putCancelAppointment(requests, slot, booked.poll());
+                            sentOperation[slot] = 2;
+                        } else if (roll < cancelPercent + bookPercent) {
+                            BinaryProtocol.putBookAppointment(requests, slot, 1 + random.nextInt(patients),
+                                                              FIRST_START_MINUTE + bookings++ * AppointmentService.APPOINTMENT_MINUTES,
+                                                              doctorName, "Load test");
+                            sentOperation[slot] = 1;
+                        } else {
+                            BinaryProtocol.putFindPatient(requests, slot, 1 + random.nextInt(patients));
+                            sentOperation[slot] = 0;
+                        }
+                        sentAt[slot] = System.nanoTime();
+                        outstanding++;
+                    }
+                    requests.flip();
+                    while (requests.hasRemaining()) {
+                        channel.write(requests);
+                    }
+                    requests.clear();
+                }
+                if (channel.read(responses) < 0) {
+                    throw new IOException("Server closed the connection with " + outstanding + " requests outstanding.");
+                }
+                responses.flip();
+                while (responses.remaining() >= 4 && responses.remaining() >= 4 + responses.getInt(responses.position())) {
+                    int frameEnd = responses.position() + 4 + responses.getInt();
+                    int slot = responses.getInt();
+                    byte status = responses.get();
+                    long now = System.nanoTime();
+                    int operation = sentOperation[slot];
+                    if (status == BinaryProtocol.OK && operation == 1) {
+                        booked.add(responses.getLong());
+                    }
+                    if (sentAt[slot] >= measureFrom) {
+                        record(operation, now - sentAt[slot]);
+                        statuses[Math.min(status, statuses.length - 1)]++;
+                        if (status != BinaryProtocol.OK) {
+                            failures[operation]++;
+                        }
+                    }
+                    responses.position(frameEnd);
+                    freeSlots[--outstanding] = slot;
+                }
+                responses.compact();
+            }
+        }
+
+        private void record(int operation, long nanos) {
+            if (samples[operation] == latencies[operation].length) {
+                latencies[operation] = Arrays.copyOf(latencies[operation], samples[operation] * 2);
+            }
+            latencies[operation][samples[operation]++] = nanos;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = "localhost";
+        int port = 7300;
+        int connections = 4;
+        int pipeline = 128;
+        int patients = 2;
+        int bookPercent = 0;
+        int cancelPercent = 0;
+        long warmupMillis = 2_000;
+        long measureMillis = 10_000;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--server":
+                    String address = args[++i];
+                    host = address.substring(0, address.lastIndexOf(':'));
+                    port = Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+                    break;
+                case "--connections":
+                    connections = Integer.parseInt(args[++i]);
+                    break;
+                case "--pipeline":
+                    pipeline = Integer.parseInt(args[++i]);
+                    break;
+                case "--patients":
+                    patients = (int) Double.parseDouble(args[++i]);
+                    break;
+                case "--book-percent":
+                    bookPercent = Integer.parseInt(args[++i]);
+                    break;
+                case "--cancel-percent":
+                    cancelPercent = Integer.parseInt(args[++i]);
+                    break;
+                case "--warmup-ms":
+                    warmupMillis = Long.parseLong(args[++i]);
+                    break;
+                case "--measure-ms":
+                    measureMillis = Long.parseLong(args[++i]);
+                    break;
+                default:
+                    System.err.println("Usage: java BinaryLoadGenerator [--server host:port] [--connections N] [--pipeline N]"
+                                       + " [--patients N] [--book-percent N] [--cancel-percent N] [--warmup-ms N] [--measure-ms N]");
+                    return;
+            }
+        }
+
+        System.out.printf(Locale.ROOT, "Driving %s:%d with %d connections x %d pipelined requests over patients P1-P%d"
+                                       + " (%d%% bookings, %d%% cancellations)...%n",
+                          host, port, connections, pipeline, patients, bookPercent, cancelPercent);
+        String runId = Long.toString(System.currentTimeMillis(), 36);
+        long measureFrom = System.nanoTime() + warmupMillis * 1_000_000;
+        long stopAt = measureFrom + measureMillis * 1_000_000;
+        Worker[] workers = new Worker[connections];
+        Thread[] threads = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            workers[i] = new Worker(i, host, port, pipeline, patients, bookPercent, cancelPercent, runId, measureFrom, stopAt);
+            threads[i] = new Thread(workers[i], "load-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (Worker worker : workers) {
+            if (worker.error != null) {
+                System.err.println("Connection " + worker.index + " failed: " + worker.error.getMessage());
+            }
+        }
+        print(workers, measureMillis);
+    }
+
+    private static void print(Worker[] workers, long measureMillis) {
+        String rule = "+----------------------+------------+------------+-----------+-----------+-----------+------------+";
+        System.out.println(rule);
+        System.out.println("| operation            |        ops |  ops/sec   |    p50_ns |    p99_ns |   p999_ns |     failed |");
+        System.out.println(rule);
+        long totalOps = 0;
+        for (int operation = 0; operation < OPERATIONS.length; operation++) {
+            int count = 0;
+            long failed = 0;
+            for (Worker worker : workers) {
+                count += worker.samples[operation];
+                failed += worker.failures[operation];
+            }
+            if (count == 0) {
+                continue;
+            }
+            long[] latencies = new long[count];
+            int filled = 0;
+            for (Worker worker : workers) {
+                System.arraycopy(worker.latencies[operation], 0, latencies, filled, worker.samples[operation]);
+                filled += worker.samples[operation];
+            }
+            Arrays.sort(latencies);
+            totalOps += count;
+            System.out.println(row(OPERATIONS[operation], count, count * 1000.0 / measureMillis, latencies, failed));
+        }
+        System.out.println(rule);
+        System.out.printf(Locale.ROOT, "| %-20s | %10d | %10.0f |%n", "total", totalOps, totalOps * 1000.0 / measureMillis);
+        long[] statuses = new long[workers[0].statuses.length];
+        for (Worker worker : workers) {
+            for (int i = 0; i < statuses.length; i++) {
+                statuses[i] += worker.statuses[i];
+            }
+        }
+        System.out.printf(Locale.ROOT, "Statuses: ok=%d failed=%d patient-not-found=%d appointment-not-found=%d conflict=%d read-only=%d%n",
+                          statuses[0], statuses[1], statuses[2], statuses[3], statuses[4], statuses[5]);
+    }
+
+    private static String row(String operation, int count, double opsPerSecond, long[] sorted, long failed) {
+        return String.format(Locale.ROOT, "| %-20s | %10d | %10.0f | %9d | %9d | %9d | %10d |", operation, count, opsPerSecond,
+                             percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 0.999), failed);
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))];
+    }
 }
\ No newline at end of file